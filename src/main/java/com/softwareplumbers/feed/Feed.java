@@ -64,6 +64,23 @@ public interface Feed {
         }
     }
         
+    /** Convenience method for subscribing to messages on this feed.
+     * 
+     * Should be the same as calling service.subscribe(this.getName(), from, serverId, subscriber)
+     * 
+     * @param service Service from which to receive messages
+     * @param from Timestamp after which we are interested in messages
+     * @param serverId Server at which the from timestamp was retrieved
+     * @param subscriber Subscriber to which messages are delivered
+     */
+    default void subscribe(FeedService service, Instant from, UUID serverId, MessageSubscriber subscriber, Predicate<Message>... filters) {
+        try {
+            service.subscribe(getName(), from, serverId, subscriber, filters);
+        } catch (FeedExceptions.InvalidPath e) {
+            throw new FeedExceptions.BaseRuntimeException(e);
+        }
+    }
+        
     /** Convenience method for posting messages to this feed.
      * 
      * Should be the same as calling service.post(this.getName, message)
@@ -51,6 +51,24 @@ public interface FeedService extends AutoCloseable {
      */
     CompletableFuture<MessageIterator> listen(FeedPath path, Instant after, UUID serverId, long timeoutMillis, Predicate<Message>... filters) throws InvalidPath;
     
+    /** Subscribe to all messages on a feed after the given instant.
+     * 
+     * Unlike listen, a subscription stays open: matching messages are delivered to the 
+     * subscriber continuously as they arrive, up to the demand it has requested, until the 
+     * subscription is cancelled or the service closes. 
+     * 
+     * @param path Path to feed (must not include a message id)
+     * @param after Instant after which messages are delivered
+     * @param serverId Server id indicates which server's timestamps to use when comparing with 'after'.
+     * @param subscriber Subscriber to which messages are delivered
+     * @param filters Predicates which will filter the delivered messages.
+     * @throws com.softwareplumbers.feed.FeedExceptions.InvalidPath 
+     * @throws UnsupportedOperationException if the service does not support subscriptions
+     */
+    default void subscribe(FeedPath path, Instant after, UUID serverId, MessageSubscriber subscriber, Predicate<Message>... filters) throws InvalidPath {
+        throw new UnsupportedOperationException("Subscriptions are not supported by this service");
+    }
+    
     
     /** Watch for messages on a feed posted to this server after the given instant.
      * 
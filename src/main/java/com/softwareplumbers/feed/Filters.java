@@ -122,6 +122,24 @@ public class Filters {
         return timestamp.isAfter(from) && (!to.isPresent() || !to.get().isBefore(timestamp));
     };      
     
+    /** Test a message's original timestamp.
+     * 
+     * The original timestamp is the one given to the message by the server on which it was
+     * posted: the remote timestamp for a replicated message, otherwise the message timestamp.
+     * When all servers use a hybrid logical clock, original timestamps can be compared 
+     * directly with timestamps from any server.
+     * 
+     * @param from Instant after which the original timestamp must fall
+     * @param to Instant on or before which the original timestamp must fall, if present
+     * @return A predicate which tests the original timestamp of a message
+     */
+    public static Predicate<Message> byOriginTimestamp(Instant from, Optional<Instant> to) {
+        return message->{
+            Instant timestamp = message.getRemoteInfo().map(info->info.timestamp).orElseGet(message::getTimestamp);
+            return timestamp.isAfter(from) && (!to.isPresent() || !to.get().isBefore(timestamp));
+        };
+    }
+    
     public static Instant getInitTime(FeedService service, UUID serverId) {
         return service.getCluster()
                 .orElseThrow(()->new RuntimeException("service must be registered to a cluster to search by a remote timestamp"))    
@@ -0,0 +1,42 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.feed;
+
+/** Receiver of a continuous stream of messages from a feed.
+ *
+ * Equivalent to java.util.concurrent.Flow.Subscriber, for Java 8. A subscriber first
+ * receives its subscription through onSubscribe, and then no messages until it signals
+ * demand with MessageSubscription.request. Calls to a subscriber are never concurrent.
+ * 
+ * Methods should return promptly; a subscriber which blocks delays delivery to other 
+ * subscribers of the same service.
+ *
+ * @author jonathan
+ */
+public interface MessageSubscriber {
+    
+    /** Called once, before any other method, with the new subscription.
+     * 
+     * @param subscription Subscription used to request messages or cancel
+     */
+    void onSubscribe(MessageSubscription subscription);
+    
+    /** Called with each message, in timestamp order, up to the demand requested.
+     * 
+     * @param message The next message
+     */
+    void onNext(Message message);
+    
+    /** Called if the subscription fails. No further calls are made.
+     * 
+     * @param error The cause of failure
+     */
+    void onError(Throwable error);
+    
+    /** Called when the feed service closes. No further calls are made.
+     */
+    void onComplete();
+}
@@ -0,0 +1,30 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.feed;
+
+/** Link between a feed and a MessageSubscriber.
+ *
+ * Equivalent to java.util.concurrent.Flow.Subscription, for Java 8. 
+ *
+ * @author jonathan
+ */
+public interface MessageSubscription {
+    
+    /** Add to the number of messages the subscriber is ready to receive.
+     * 
+     * Demand accumulates; messages are delivered as they arrive until it is used up.
+     * A request for less than one message fails the subscription.
+     * 
+     * @param n Number of further messages to deliver
+     */
+    void request(long n);
+    
+    /** Stop delivering messages. 
+     * 
+     * Some messages may still be delivered while cancellation takes effect.
+     */
+    void cancel();
+}
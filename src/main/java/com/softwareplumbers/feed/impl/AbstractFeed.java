@@ -12,23 +12,30 @@ import com.softwareplumbers.feed.FeedService;
 import com.softwareplumbers.feed.Filters;
 import com.softwareplumbers.feed.Message;
 import com.softwareplumbers.feed.MessageIterator;
+import com.softwareplumbers.feed.MessageSubscriber;
 import com.softwareplumbers.feed.MessageType;
 import java.io.PrintWriter;
 import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
 import java.util.stream.Stream;
@@ -43,13 +50,62 @@ public abstract class AbstractFeed implements Feed {
     
     private static final XLogger LOG = XLoggerFactory.getXLogger(AbstractFeed.class);
     
+    /** Class of message on which callbacks are indexed.
+     * 
+     * A message is an ack or not, and was originally posted on some server; a channel may
+     * leave either unspecified. Each message belongs to four channels.
+     */
+    private static final class Channel {
+        public final Boolean ack;
+        public final UUID origin;
+        
+        public Channel(Boolean ack, UUID origin) {
+            this.ack = ack;
+            this.origin = origin;
+        }
+        
+        public static Channel[] of(Message message, UUID localServerId) {
+            Boolean ack = message.getType() == MessageType.ACK;
+            UUID origin = message.getRemoteInfo().map(info->info.serverId).orElse(localServerId);
+            return new Channel[] { new Channel(null, null), new Channel(ack, null), new Channel(null, origin), new Channel(ack, origin) };
+        }
+        
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Channel 
+                && Objects.equals(ack, ((Channel)other).ack) 
+                && Objects.equals(origin, ((Channel)other).origin);
+        }
+        
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(ack) ^ Objects.hashCode(origin);
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("Channel[ ack: %s, origin: %s]", ack, origin);
+        }
+    }
+    
     private static class Callback {
         public final CompletableFuture<MessageIterator> future;
         public final Predicate<Message> predicate;
+        public final List<Predicate<Message>> filters;
         public final Instant fromTime;
         public final Instant expiry;
+        /** Channel implied by the known filters */
+        public final Channel channel;
+        /** Filters not implied by the channel */
+        public final Predicate<Message> residual;
+        /** Timeout on the service's timing wheel, if the callback has an expiry */
+        public TimerWheel.Timeout timeout;
+        /** Number of further matching messages needed to complete the callback */
+        public int needed = 1;
+        /** Linger timeout, scheduled once the callback has some but not all of the messages needed */
+        public TimerWheel.Timeout linger;
         
-        public Callback(Instant fromTime, Instant expiry, Predicate<Message>... predicates) {
+        public Callback(UUID localServerId, Instant fromTime, Instant expiry, Predicate<Message>... predicates) {
             if (predicates.length == 0) {
                 this.predicate = message->true;
             } else if (predicates.length == 1) {
@@ -57,9 +113,43 @@ public abstract class AbstractFeed implements Feed {
             } else {
                 this.predicate = Stream.of(predicates).reduce(message->true,  Predicate::and);                    
             }
+            this.filters = Arrays.asList(predicates);
+            Boolean ack = null;
+            UUID origin = null;
+            Predicate<Message> residual = message->true;
+            for (Predicate<Message> predicate : predicates) {
+                if (ack == null && predicate == Filters.NO_ACKS) {
+                    ack = false;
+                } else if (ack == null && predicate == Filters.IS_ACK) {
+                    ack = true;
+                } else if (origin == null && predicate == Filters.POSTED_LOCALLY) {
+                    origin = localServerId;
+                } else if (origin == null && predicate instanceof Filters.FromRemote) {
+                    origin = ((Filters.FromRemote)predicate).remote;
+                } else {
+                    residual = residual.and(predicate);
+                }
+            }
             this.future = new CompletableFuture<>();
             this.fromTime = fromTime;
             this.expiry = expiry;
+            this.channel = new Channel(ack, origin);
+            this.residual = residual;
+        }
+        
+        /** Get a key identifying the search which completes this callback.
+         * 
+         * Callbacks with equal keys receive the same messages.
+         * 
+         * @return A key made from the from time and filters
+         */
+        public Object getSearchKey() {
+            return Arrays.asList(fromTime, filters);
+        }
+        
+        public void cancelTimeout() {
+            if (timeout != null) timeout.cancel();
+            if (linger != null) linger.cancel();
         }
         
         @Override
@@ -67,44 +157,100 @@ public abstract class AbstractFeed implements Feed {
             return String.format("Callback[ fromTime: %s, expiry: %s, predicate: %s]", fromTime, expiry, predicate);
         }
     }
+    
+    /** A post waiting to be committed as part of a batch. */
+    private static class PendingPost {
+        public final Message message;
+        public Message result;
+        public RuntimeException error;
+        public boolean done = false;
+        
+        public PendingPost(Message message) {
+            this.message = message;
+        }
+    }
        
     private final Optional<AbstractFeed> parentFeed;
     private final Optional<String> name;
-    private final NavigableMap<Instant, List<Callback>> callbacks = new TreeMap<>();
-    private final NavigableMap<Instant, List<Callback>> timeouts = new TreeMap<>();
+    /** Pending callbacks by channel, then by from time */
+    private final Map<Channel, NavigableMap<Instant, List<Callback>>> callbacks = new HashMap<>();
     private final Map<String, AbstractFeed> children = new ConcurrentHashMap<>();   
-    private ScheduledFuture<?> nextTimeout;
+    private final Set<FeedSubscription> subscriptions = ConcurrentHashMap.newKeySet();
+    private final Deque<PendingPost> pendingPosts = new ArrayDeque<>();
+    private boolean batchInProgress = false;
     
     private synchronized void addCallback(AbstractFeedService service, Callback callback) {
         LOG.entry(callback);
-        callbacks.computeIfAbsent(callback.fromTime, key -> new LinkedList()).add(callback);
+        callbacks.computeIfAbsent(callback.channel, key -> new TreeMap<>())
+            .computeIfAbsent(callback.fromTime, key -> new LinkedList()).add(callback);
         if (callback.expiry != null) {
-            timeouts.computeIfAbsent(callback.expiry, key->new LinkedList()).add(callback);
-            scheduleTimeout(service, Optional.of(callback.expiry));
+            long delayMillis = callback.expiry.toEpochMilli() - Instant.now().toEpochMilli();
+            callback.timeout = service.scheduleTimeout(()->expire(service, callback), delayMillis);
         }
-        if (LOG.isTraceEnabled()) LOG.trace("{} timeout buckets", timeouts.size());
-        if (LOG.isTraceEnabled()) LOG.trace("{} callback buckets", callbacks.size());
+        if (callback.needed < service.getListenBatchSize()) startLinger(service, callback);
+        if (LOG.isTraceEnabled()) LOG.trace("{} callback channels", callbacks.size());
         LOG.exit();
     }
     
-    private synchronized void removeTimeout(Callback callback) {
+    /** Start waiting for the rest of a callback's batch, for up to the service's linger time.
+     * 
+     * @param service Feed service
+     * @param callback Callback which has some of the messages it needs
+     */
+    private void startLinger(AbstractFeedService service, Callback callback) {
+        if (callback.linger == null) callback.linger = service.scheduleTimeout(()->expire(service, callback), service.getListenLinger());
+    }
+    
+    /** Remove a callback.
+     * 
+     * @param callback Callback to remove
+     * @return true if the callback was still waiting to be triggered
+     */
+    private synchronized boolean removeTrigger(Callback callback) {
         LOG.entry(callback);
-        if (callback.expiry != null)
-            timeouts.compute(callback.expiry, (expiry, bucket)-> {
-                bucket.remove(callback);
-                return bucket.isEmpty() ? null : bucket;
-            });
-        if (LOG.isTraceEnabled()) LOG.trace("{} timeout buckets", timeouts.size());
-        LOG.exit();
+        NavigableMap<Instant, List<Callback>> subscribed = callbacks.get(callback.channel);
+        List<Callback> bucket = subscribed == null ? null : subscribed.get(callback.fromTime);
+        if (bucket == null || !bucket.remove(callback)) return LOG.exit(false);
+        if (bucket.isEmpty()) subscribed.remove(callback.fromTime);
+        if (subscribed.isEmpty()) callbacks.remove(callback.channel);
+        if (LOG.isTraceEnabled()) LOG.trace("{} callback channels", callbacks.size());
+        return LOG.exit(true);
     }
     
-    private synchronized void removeTrigger(Callback callback) {
+    /** Complete a callback which has timed out with whatever messages are available.
+     * 
+     * @param service Feed service
+     * @param callback Callback which has expired
+     */
+    private void expire(AbstractFeedService service, Callback callback) {
         LOG.entry(callback);
-        callbacks.compute(callback.fromTime, (fromTime, bucket)-> {
-            bucket.remove(callback);
-            return bucket.isEmpty() ? null : bucket;            
-        });
-        if (LOG.isTraceEnabled()) LOG.trace("{} callback buckets", callbacks.size());
+        if (removeTrigger(callback) && !callback.future.isCancelled()) {
+            service.callback(() -> complete(service, Collections.singletonList(callback)));
+        }
+        LOG.exit();
+    }
+    
+    /** Complete a group of callbacks waiting for the same search.
+     * 
+     * The search is run once, and its results shared between the callbacks.
+     * 
+     * @param service Feed service
+     * @param group Callbacks with the same search key
+     */
+    private void complete(AbstractFeedService service, List<Callback> group) {
+        LOG.entry(service, group.size());
+        Callback first = group.get(0);
+        List<MessageIterator> results;
+        try {
+            MessageIterator found = search(service, service.getServerId(), first.fromTime, Optional.of(false), first.predicate);
+            results = group.size() == 1 ? Collections.singletonList(found) : SharedResults.share(found, group.size());
+        } catch (RuntimeException e) {
+            group.forEach(callback->callback.future.completeExceptionally(e));
+            throw LOG.throwing(e);
+        }
+        for (int i = 0; i < group.size(); i++) {
+            if (!group.get(i).future.complete(results.get(i))) results.get(i).close();
+        }
         LOG.exit();
     }
 
@@ -147,6 +293,7 @@ public abstract class AbstractFeed implements Feed {
     @Override
     public Message replicate(FeedService service, Message message) {
         LOG.entry(getName(), service, message);
+        ((AbstractFeedService)service).mergeTimestamp(message.getTimestamp());
         message = message.localizeTimestamp(service.getServerId(), null);
         if (message.getType() == MessageType.ACK) {
             Message result = store(message)[0];
@@ -154,7 +301,7 @@ public abstract class AbstractFeed implements Feed {
             return result;
         } else {
             Message[] results = store(message, MessageImpl.acknowledgement(message));
-            for (Message result: results) trigger((AbstractFeedService)service, result);
+            trigger((AbstractFeedService)service, results);
             return LOG.exit(results[1]);
         }
     }
@@ -180,82 +327,149 @@ public abstract class AbstractFeed implements Feed {
             .setName(getName().addId(svc.generateMessageId()))
             .setServerId(service.getServerId());
         
+        if (svc.getPostBatchSize() > 1) return LOG.exit(postBatched(svc, message));
+        
         Message[] results = store(message, MessageImpl.acknowledgement(message));
-        for (Message result: results) trigger(svc,result);
+        trigger(svc, results);
         return LOG.exit(results[1]);
     }    
-              
-    protected void trigger(AbstractFeedService service, Message message) {
+    
+    /** Post a message as part of a batch.
+     * 
+     * Concurrent posts to this feed are queued. The poster at the head of the queue waits for up to 
+     * the service's post linger time, or until the queue holds a full batch, then stores all the queued
+     * messages and their acknowledgements with a single call to store, and triggers callbacks once for
+     * the whole batch. Each poster then receives the acknowledgement for its own message. 
+     * 
+     * @param service Feed service
+     * @param message Message with name and server id already set
+     * @return Acknowledgement of the message
+     */
+    private Message postBatched(AbstractFeedService service, Message message) {
         LOG.entry(service, message);
-        synchronized(this) {
-            Iterator<Map.Entry<Instant, List<Callback>>> activated = callbacks.headMap(message.getTimestamp(), false).entrySet().iterator();
-            List<Callback> retries = new LinkedList();
-            while (activated.hasNext()) {
-                final Map.Entry<Instant, List<Callback>> entry = activated.next();
-                Instant entryTimestamp = entry.getKey();
-                LOG.trace("Processing callbacks looking for messages after {}", entryTimestamp);
-                activated.remove();
-                for (Callback callback : entry.getValue()) {
-                    removeTimeout(callback);
-                    if (!callback.future.isCancelled()) {
-                        if (callback.predicate.test(message)) {
-                            service.callback(() -> { 
-                                MessageIterator messages = search(service, service.getServerId(), callback.fromTime, Optional.of(false), callback.predicate);
-                                callback.future.complete(messages);
-                            });
-                        } else {
-                            LOG.trace("Callback did not match predicate {}", callback.predicate);
-                            retries.add(callback);
-                        }
+        int maxBatchSize = service.getPostBatchSize();
+        PendingPost post = new PendingPost(message);
+        List<PendingPost> batch = new ArrayList<>(maxBatchSize);
+        boolean interrupted = false;
+        synchronized(pendingPosts) {
+            pendingPosts.add(post);
+            if (pendingPosts.size() >= maxBatchSize) pendingPosts.notifyAll();
+            // Wait until another poster has committed this post, or until this post is at the head of the queue
+            while (!post.done && (batchInProgress || pendingPosts.peek() != post)) {
+                try {
+                    pendingPosts.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (!post.done) {
+                batchInProgress = true;
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(service.getPostLinger());
+                long remaining;
+                while (pendingPosts.size() < maxBatchSize && (remaining = deadline - System.nanoTime()) > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(pendingPosts, remaining);
+                    } catch (InterruptedException e) {
+                        interrupted = true;
                     }
                 }
+                while (batch.size() < maxBatchSize && !pendingPosts.isEmpty()) batch.add(pendingPosts.poll());
             }
-            retries.forEach(callback->addCallback(service, callback));
         }
-        parentFeed.ifPresent(feed->feed.trigger(service, message));
-        LOG.exit();
+        if (interrupted) Thread.currentThread().interrupt();
+        if (!batch.isEmpty()) commit(service, batch);
+        if (post.error != null) throw LOG.throwing(post.error);
+        return LOG.exit(post.result);
     }
     
-    protected Optional<Instant> timeout(AbstractFeedService service) {
-        LOG.entry(service);
-        Instant now = Instant.now();
-        synchronized(this) {
-            Iterator<Map.Entry<Instant, List<Callback>>> activated = timeouts.headMap(now, false).entrySet().iterator();
-            while (activated.hasNext()) {
-                final Map.Entry<Instant, List<Callback>> entry = activated.next();
-                LOG.trace("Processing timeouts for callbacks after {}", now);
-                activated.remove();
-                for (Callback callback : entry.getValue()) {
-                    removeTrigger(callback);
-                    if (!callback.future.isCancelled()) {
-                        service.callback(() -> { 
-                            MessageIterator messages = search(service, service.getServerId(), callback.fromTime, Optional.of(false), callback.predicate);
-                            callback.future.complete(messages);
-                        });
-                    }
-                }
+    private void commit(AbstractFeedService service, List<PendingPost> batch) {
+        LOG.entry(service, batch.size());
+        Message[] messages = new Message[batch.size() * 2];
+        for (int i = 0; i < batch.size(); i++) {
+            messages[i * 2] = batch.get(i).message;
+            messages[i * 2 + 1] = MessageImpl.acknowledgement(batch.get(i).message);
+        }
+        Message[] results = null;
+        RuntimeException error = null;
+        try {
+            results = store(messages);
+            trigger(service, results);
+        } catch (RuntimeException e) {
+            error = e;
+        } 
+        synchronized(pendingPosts) {
+            for (int i = 0; i < batch.size(); i++) {
+                PendingPost post = batch.get(i);
+                if (results != null) post.result = results[i * 2 + 1]; 
+                post.error = error;
+                post.done = true;
             }
-            return LOG.exit(timeouts.isEmpty() ? Optional.empty() : Optional.of(timeouts.firstKey()));
+            batchInProgress = false;
+            pendingPosts.notifyAll();
         }
+        LOG.exit();
     }
-
-    public void scheduleTimeout(AbstractFeedService service, Optional<Instant> deadline) {
-        LOG.entry(service, deadline);
-        if (deadline.isPresent()) {
-            long deadlineMillis = deadline.get().toEpochMilli() - Instant.now().toEpochMilli();
-            if (nextTimeout  == null || deadlineMillis < nextTimeout.getDelay(TimeUnit.MILLISECONDS)) {
-                if (nextTimeout != null) nextTimeout.cancel(false);
-                service.schedule(
-                    ()->{
-                        scheduleTimeout(service, timeout(service));
-                    }, 
-                    deadlineMillis
-                );
+              
+    /** Complete any callbacks waiting for the given messages.
+     * 
+     * A callback is completed if any of the messages has a timestamp after the callback's from time and
+     * matches the callback's predicate. Callbacks on parent feeds are also triggered. With listen batching
+     * enabled, a callback is only completed once it has seen a full batch of matching messages, or when 
+     * its linger time expires.
+     * 
+     * Callbacks are indexed by the channel implied by their filters, and by from time, so only callbacks
+     * which could match a message are visited. A callback which does not match stays where it is.
+     * Callbacks woken together which have the same from time and filters share a single search.
+     * 
+     * @param service Feed service
+     * @param messages Messages which have been stored in this feed
+     */
+    protected void trigger(AbstractFeedService service, Message... messages) {
+        LOG.entry(service, messages);
+        if (messages.length == 0) {
+            LOG.exit();
+            return;
+        }
+        Map<Object, List<Callback>> woken = new LinkedHashMap<>();
+        synchronized(this) {
+            for (Message message : messages) {
+                for (Channel channel : Channel.of(message, service.getServerId())) {
+                    NavigableMap<Instant, List<Callback>> subscribed = callbacks.get(channel);
+                    if (subscribed == null) continue;
+                    Iterator<Map.Entry<Instant, List<Callback>>> activated = subscribed.headMap(message.getTimestamp(), false).entrySet().iterator();
+                    while (activated.hasNext()) {
+                        final Map.Entry<Instant, List<Callback>> entry = activated.next();
+                        LOG.trace("Processing callbacks on {} looking for messages after {}", channel, entry.getKey());
+                        Iterator<Callback> pending = entry.getValue().iterator();
+                        while (pending.hasNext()) {
+                            Callback callback = pending.next();
+                            if (callback.future.isCancelled()) {
+                                pending.remove();
+                                callback.cancelTimeout();
+                            } else if (callback.residual.test(message)) {
+                                if (--callback.needed > 0) {
+                                    startLinger(service, callback);
+                                } else {
+                                    pending.remove();
+                                    callback.cancelTimeout();
+                                    woken.computeIfAbsent(callback.getSearchKey(), key->new ArrayList<>()).add(callback);
+                                }
+                            } else {
+                                LOG.trace("Callback did not match predicate {}", callback.predicate);
+                            }
+                        }
+                        if (entry.getValue().isEmpty()) activated.remove();
+                    }
+                    if (subscribed.isEmpty()) callbacks.remove(channel);
+                }
             }
         }
+        woken.values().forEach(group->service.callback(()->complete(service, group)));
+        subscriptions.forEach(subscription->subscription.signal(messages));
+        parentFeed.ifPresent(feed->feed.trigger(service, messages));
         LOG.exit();
     }
-
+    
     @Override
     public FeedPath getName() {
         if (!parentFeed.isPresent()) return FeedPath.ROOT;
@@ -266,33 +480,76 @@ public abstract class AbstractFeed implements Feed {
     public CompletableFuture<MessageIterator> listen(FeedService service, Instant from, UUID serverId, long timeoutMillis, Predicate<Message>... filters) {
         LOG.entry(getName(), service, from, serverId, timeoutMillis, filters);
         MessageIterator results = search(service, serverId, from, filters); 
-        if (results.hasNext()) {
-            LOG.debug("Found results, returning immediately");
-            return LOG.exit(CompletableFuture.completedFuture(results));
-        } else {
-            results.close();
-            Instant expiry = timeoutMillis > 0 ? Instant.now().plusMillis(timeoutMillis) : null;
-            Callback result = new Callback(from, expiry, filters);
-            addCallback((AbstractFeedService)service, result);
-            return LOG.exit(result.future);            
-        }
+        return LOG.exit(await((AbstractFeedService)service, results, from, timeoutMillis, filters));
     }
 
     public CompletableFuture<MessageIterator> watch(FeedService service, Instant from, long timeoutMillis) {
         LOG.entry(getName(), service, from);
         MessageIterator results = search(service, service.getServerId(), from, Optional.of(false), Filters.POSTED_LOCALLY); 
-        if (results.hasNext()) {
+        return LOG.exit(await((AbstractFeedService)service, results, from, timeoutMillis, Filters.POSTED_LOCALLY));
+    }
+    
+    /** Return messages already found, or register a callback to wait for more.
+     * 
+     * With listen batching enabled, found messages are returned immediately only if there are at least 
+     * the minimum batch size, or if the linger time is zero. Otherwise the callback waits for the rest 
+     * of the batch, for up to the linger time.
+     * 
+     * @param service Feed service
+     * @param results Messages already found after from
+     * @param from Time after which messages are wanted
+     * @param timeoutMillis Time to wait for messages
+     * @param filters Predicates messages must match
+     * @return Future which completes when a batch of messages is available or the wait times out
+     */
+    private CompletableFuture<MessageIterator> await(AbstractFeedService service, MessageIterator results, Instant from, long timeoutMillis, Predicate<Message>... filters) {
+        int minBatch = service.getListenBatchSize();
+        List<Message> head = new ArrayList<>(minBatch);
+        while (head.size() < minBatch && results.hasNext()) head.add(results.next());
+        if (head.size() >= minBatch || !head.isEmpty() && service.getListenLinger() == 0) {
             LOG.debug("Found results, returning immediately");
-            return LOG.exit(CompletableFuture.completedFuture(results));
+            return CompletableFuture.completedFuture(MessageIterator.of(MessageIterator.of(head.stream()), results));
         } else {
             results.close();
             Instant expiry = timeoutMillis > 0 ? Instant.now().plusMillis(timeoutMillis) : null;
-            Callback result = new Callback(from, expiry, Filters.POSTED_LOCALLY);
-            addCallback((AbstractFeedService)service, result);
-            return LOG.exit(result.future);            
+            Callback result = new Callback(service.getServerId(), from, expiry, filters);
+            result.needed = minBatch - head.size();
+            addCallback(service, result);
+            return result.future;            
         }
     }
 
+    /** Subscribe to messages stored in this feed and its children.
+     * 
+     * The subscriber's onSubscribe method is called before this method returns. Messages after
+     * the given time are then delivered, as they are stored, up to the demand requested.
+     * 
+     * @param service Feed service
+     * @param from Timestamp after which messages are delivered
+     * @param serverId Server whose timestamps are used to compare with from
+     * @param subscriber Subscriber to which messages are delivered
+     * @param filters Predicates which delivered messages must match
+     */
+    @Override
+    public void subscribe(FeedService service, Instant from, UUID serverId, MessageSubscriber subscriber, Predicate<Message>... filters) {
+        LOG.entry(getName(), service, from, serverId, subscriber, filters);
+        FeedSubscription subscription = new FeedSubscription(this, (AbstractFeedService)service, from, serverId, subscriber, filters);
+        subscriptions.add(subscription);
+        subscriber.onSubscribe(subscription);
+        LOG.exit();
+    }
+    
+    void removeSubscription(FeedSubscription subscription) {
+        subscriptions.remove(subscription);
+    }
+    
+    /** Complete all subscriptions to this feed, because the service is closing.
+     */
+    void completeSubscriptions() {
+        subscriptions.forEach(FeedSubscription::complete);
+        subscriptions.clear();
+    }
+
     public Stream<Feed> getChildren(FeedService service) {        
         return children.values().stream().map(Feed.class::cast);
     }
@@ -313,6 +570,13 @@ public abstract class AbstractFeed implements Feed {
         if (serverId == null || serverId.equals(service.getServerId())) {
             result = localSearch(svc, from, fromInclusive, to, toInclusive, filters);
             bufferedDataComplete = hasCompleteData(svc,from);
+        } else if (service.hasHybridClock()) {
+            // Local timestamps are later than the original timestamps of replicated messages, so
+            // there is no need to search further back or to look up the remote server's acks
+            Predicate<Message>[] adjustedFilters = Arrays.copyOfRange(filters, 0, filters.length+1);
+            adjustedFilters[filters.length] = Filters.byOriginTimestamp(from, to);
+            result = localSearch(svc, from, fromInclusive, to, toInclusive, adjustedFilters);
+            bufferedDataComplete = hasCompleteData(svc, from);
         } else {
             Instant acksFrom = from.minusSeconds(service.getAckTimeout()); // Add extra time to ensure we fetch all the acks
             Predicate<Message>[] adjustedFilters = Arrays.copyOfRange(filters, 0, filters.length+1);
@@ -388,11 +652,15 @@ public abstract class AbstractFeed implements Feed {
     }
     
     public void dumpState(PrintWriter out) {
+        int outstanding;
+        synchronized(this) {
+            outstanding = callbacks.values().stream().flatMap(subscribed->subscribed.values().stream()).mapToInt(List::size).sum();
+        }
         out.write("Feed: ");
         out.write(getName().toString());
         out.write("\n");
         out.write("Outstanding callbacks: ");
-        out.write(Integer.toString(callbacks.size()));
+        out.write(Integer.toString(outstanding));
         out.write("\n");
     }
     
@@ -13,6 +13,7 @@ import com.softwareplumbers.feed.FeedService;
 import com.softwareplumbers.feed.FeedServiceManager;
 import com.softwareplumbers.feed.Message;
 import com.softwareplumbers.feed.MessageIterator;
+import com.softwareplumbers.feed.MessageSubscriber;
 import java.io.PrintWriter;
 import java.time.Instant;
 import java.util.Optional;
@@ -33,6 +34,10 @@ public abstract class AbstractFeedService implements FeedService {
     
     private static final XLogger LOG = XLoggerFactory.getXLogger(AbstractFeedService.class);
     
+    /** Resolution of listen and watch timeouts */
+    private static final long TIMEOUT_TICK_MILLIS = 10;
+    private static final int TIMEOUT_WHEEL_SIZE = 512;
+    
     private final ScheduledExecutorService callbackExecutor;
     protected final UUID serverId;
     protected Optional<FeedServiceManager> manager;
@@ -40,6 +45,12 @@ public abstract class AbstractFeedService implements FeedService {
     private final AbstractFeed rootFeed;
     private final long ackTimeout = 600; // 10 minutes
     private volatile boolean closing = false;
+    private volatile int postBatchSize = 1;
+    private volatile long postLinger = 0;
+    private volatile int listenBatchSize = 1;
+    private volatile long listenLinger = 0;
+    /** Expires listen and watch callbacks across all feeds of the service */
+    private final TimerWheel timeouts = new TimerWheel("feed-timeouts", TIMEOUT_TICK_MILLIS, TIMEOUT_WHEEL_SIZE);
     
     public AbstractFeedService(UUID serverId, ScheduledExecutorService callbackExecutor, Instant initTime, AbstractFeed rootFeed) {
         this.callbackExecutor = callbackExecutor;
@@ -52,6 +63,77 @@ public abstract class AbstractFeedService implements FeedService {
     public long getAckTimeout() {
         return ackTimeout;
     }
+    
+    /** Enable group commit of concurrent posts.
+     * 
+     * When enabled, concurrent posts to the same feed are collected into batches which are stored 
+     * together and trigger callbacks once. A batch is committed when it reaches the maximum size, 
+     * or when the first post in the batch has waited for the linger time. A maximum batch size of
+     * one (the default) disables batching.
+     * 
+     * @param maxBatchSize Maximum number of posts in a batch
+     * @param lingerMillis Maximum time in milliseconds a post waits for other posts to join its batch
+     */
+    public void setPostBatching(int maxBatchSize, long lingerMillis) {
+        if (maxBatchSize < 1 || lingerMillis < 0) throw new IllegalArgumentException("Invalid post batching parameters");
+        this.postBatchSize = maxBatchSize;
+        this.postLinger = lingerMillis;
+    }
+    
+    /** Enable batching of messages returned by listen and watch.
+     * 
+     * When enabled, a listen or watch completes once at least the minimum batch size of matching
+     * messages is available, or once the linger time has passed since the first matching message
+     * became available, or on timeout, whichever comes first. Clients receiving a steady trickle of 
+     * messages then make fewer round trips. A minimum batch size of one (the default) completes on 
+     * the first matching message.
+     * 
+     * @param minBatchSize Minimum number of messages returned without waiting
+     * @param lingerMillis Maximum time in milliseconds to wait for a full batch once any message is available
+     */
+    public void setListenBatching(int minBatchSize, long lingerMillis) {
+        if (minBatchSize < 1 || lingerMillis < 0) throw new IllegalArgumentException("Invalid listen batching parameters");
+        this.listenBatchSize = minBatchSize;
+        this.listenLinger = lingerMillis;
+    }
+    
+    public int getListenBatchSize() {
+        return listenBatchSize;
+    }
+    
+    public long getListenLinger() {
+        return listenLinger;
+    }
+    
+    /** Check whether this service timestamps messages with a hybrid logical clock.
+     * 
+     * If so, timestamps generated by this service are always later than the original
+     * timestamps of messages it has replicated from other nodes, and searches using
+     * another node's timestamps can compare them directly with the original timestamp
+     * of each message.
+     * 
+     * @return true if this service uses a hybrid logical clock
+     */
+    public boolean hasHybridClock() {
+        return false;
+    }
+    
+    /** Merge a timestamp generated on another node into this service's clock.
+     * 
+     * Does nothing unless the service uses a hybrid logical clock.
+     * 
+     * @param remote Timestamp from another node
+     */
+    protected void mergeTimestamp(Instant remote) {
+    }
+    
+    public int getPostBatchSize() {
+        return postBatchSize;
+    }
+    
+    public long getPostLinger() {
+        return postLinger;
+    }
      
     @Override
     public void setManager(FeedServiceManager manager) {
@@ -66,6 +148,8 @@ public abstract class AbstractFeedService implements FeedService {
         LOG.entry();
         closing = true;
         manager.ifPresent(c->c.deregister(this));
+        Stream.concat(Stream.of(rootFeed), rootFeed.getDescendents()).forEach(AbstractFeed::completeSubscriptions);
+        timeouts.close();
         callbackExecutor.shutdown();
         LOG.exit();
     }
@@ -82,6 +166,18 @@ public abstract class AbstractFeedService implements FeedService {
         LOG.exit();        
     }
     
+    /** Schedule a callback timeout on the service's timing wheel.
+     * 
+     * The task runs on the wheel's ticking thread, so should hand any real work to callback.
+     * 
+     * @param task Task to run when the timeout expires
+     * @param delayMillis Delay in milliseconds
+     * @return A timeout which may be cancelled
+     */
+    TimerWheel.Timeout scheduleTimeout(Runnable task, long delayMillis) {
+        return timeouts.schedule(delayMillis, task);
+    }
+    
     @Override
     public Optional<Cluster> getCluster() {
         return manager.map(FeedServiceManager::getCluster);
@@ -109,6 +205,13 @@ public abstract class AbstractFeedService implements FeedService {
     
     public abstract AbstractFeed createFeed(AbstractFeed parent, String name);
     
+    @Override
+    public void subscribe(FeedPath path, Instant after, UUID serverId, MessageSubscriber subscriber, Predicate<Message>... filters) throws FeedExceptions.InvalidPath {
+        LOG.entry(path, after, serverId, subscriber, filters);
+        getFeed(path).subscribe(this, after, serverId, subscriber, filters);
+        LOG.exit();
+    }
+    
     @Override
     public CompletableFuture<MessageIterator> watch(UUID serverId, Instant from, long timeoutMillis) {
         LOG.entry(serverId);
@@ -8,10 +8,12 @@ package com.softwareplumbers.feed.impl;
 import com.softwareplumbers.feed.FeedExceptions;
 import com.softwareplumbers.feed.FeedExceptions.InvalidId;
 import com.softwareplumbers.feed.FeedExceptions.InvalidPath;
+import com.softwareplumbers.feed.FeedExceptions.InvalidPathSyntax;
 import com.softwareplumbers.feed.FeedPath;
 import com.softwareplumbers.feed.Message;
 import com.softwareplumbers.feed.MessageIterator;
 import com.softwareplumbers.feed.impl.buffer.BufferPool;
+import com.softwareplumbers.feed.impl.buffer.HybridClock;
 import com.softwareplumbers.feed.impl.buffer.MessageClock;
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -21,6 +23,7 @@ import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.function.Predicate;
+import java.util.stream.Collectors;
 import org.slf4j.ext.XLogger;
 import org.slf4j.ext.XLoggerFactory;
 
@@ -44,22 +47,57 @@ public abstract class BufferingFeedService extends AbstractFeedService {
      * 
      * @param serverId An identifier for this service
      * @param callbackExecutor Executor service for running callbacks
-     * @param clock Message clock used to sequence messages
+     * @param clock Message clock used to sequence messages; a HybridClock orders messages across the cluster
      * @param bufferPool Pool of memory used to create message buffers
-     * @param bucketSize Size of a bucket - should be larger than the expected maximum message size
+     * @param bucketSize Size of a bucket - should be larger than the expected maximum message size. If the
+     * pool has a bucket sizing rule, this is only the size of the first bucket of each feed.
      */
     public BufferingFeedService(UUID serverId, ScheduledExecutorService callbackExecutor, MessageClock clock, BufferPool bufferPool, int bucketSize) {
-        super(serverId, callbackExecutor, clock.instant(), new BufferingFeed(bufferPool.createBuffer(clock, bucketSize)));
+        super(serverId, callbackExecutor, clock.instant(), new BufferingFeed(bufferPool.createBuffer(clock, bucketSize, FeedPath.ROOT.toString())));
         this.bufferPool = bufferPool;
         this.bucketSize = bucketSize; 
         this.clock = clock;            
+        // Recreate feeds whose buffers were restored from segment files, a snapshot or a journal, so that they are searched
+        bufferPool.getRestoredNames().collect(Collectors.toList()).forEach(this::restoreFeed);
+    }
+    
+    private void restoreFeed(String name) {
+        try {
+            getFeed(FeedPath.valueOf(name));
+        } catch (InvalidPathSyntax | InvalidPath e) {
+            LOG.warn("Ignoring restored content of invalid feed {}", name);
+        }
     }
     
     public final BufferingFeed createFeed(AbstractFeed parent, String name) {
-        return new BufferingFeed(bufferPool.createBuffer(clock, bucketSize), parent, name);
+        return new BufferingFeed(bufferPool.createBuffer(clock, bucketSize, parent.getName().add(name).toString()), parent, name);
+    }
+    
+    /** Close the service.
+     * 
+     * If the buffer pool has a snapshot file, the contents of all feeds are written to it.
+     * If the buffer pool has a journal, it is forced to disk and closed.
+     */
+    @Override
+    public void close() throws Exception {
+        LOG.entry();
+        super.close();
+        bufferPool.writeSnapshot();
+        bufferPool.closeJournal();
+        LOG.exit();
     }
     
     MessageClock getClock() {
         return clock;
     }
+    
+    @Override
+    public boolean hasHybridClock() {
+        return clock instanceof HybridClock;
+    }
+    
+    @Override
+    protected void mergeTimestamp(Instant remote) {
+        if (clock instanceof HybridClock) ((HybridClock)clock).merge(remote);
+    }
 }
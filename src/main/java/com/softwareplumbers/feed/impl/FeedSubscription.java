@@ -0,0 +1,287 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.feed.impl;
+
+import com.softwareplumbers.feed.Message;
+import com.softwareplumbers.feed.MessageIterator;
+import com.softwareplumbers.feed.MessageSubscriber;
+import com.softwareplumbers.feed.MessageSubscription;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+/** Long-lived subscription to the messages stored in a feed.
+ *
+ * The subscription remembers the timestamp of the last message delivered. When messages
+ * matching its filters are stored in the feed, or more demand is requested, it is
+ * signalled, and delivers messages after that timestamp on the service's callback
+ * executor until there are no more or demand runs out. At most one delivery runs at a
+ * time, so calls to the subscriber are never concurrent.
+ *
+ * Once a search has delivered everything stored, the subscription is caught up, and
+ * delivers the messages it is signalled with directly rather than searching the feed
+ * again. If demand runs out while it is caught up, it falls behind and searches again
+ * when more is requested. Signals may arrive out of timestamp order, so a message
+ * signalled after a later one has been delivered directly is still delivered, unless a
+ * search has already found it.
+ *
+ * Completion and failure are also delivered by the delivery loop, so the subscriber
+ * receives at most one terminal signal, after any message in the course of delivery.
+ *
+ * The first delivery searches from the subscriber's start time, using the timestamps
+ * of the given server; after that the subscription searches from the local timestamp of
+ * the last message delivered. Messages stored together share a timestamp, so the search
+ * includes that timestamp and skips the messages with it which were already delivered.
+ *
+ * @author jonathan
+ */
+class FeedSubscription implements MessageSubscription {
+
+    private static final XLogger LOG = XLoggerFactory.getXLogger(FeedSubscription.class);
+
+    private final AbstractFeed feed;
+    private final AbstractFeedService service;
+    private final MessageSubscriber subscriber;
+    private final Predicate<Message>[] filters;
+    private final Predicate<Message> predicate;
+    private Instant position;
+    private UUID serverId;
+    /** Number of messages delivered with a timestamp equal to position */
+    private long delivered = 0;
+    /** Signalled messages waiting to be delivered without a search */
+    private final Queue<Message> pending = new ArrayDeque<>();
+    /** True if every message after position has been delivered or is pending */
+    private boolean caughtUp = false;
+    /** Position when the subscription last caught up; earlier messages were found by a search */
+    private Instant searched = null;
+    /** Position when the subscription last fell behind; later messages are found by a search */
+    private Instant resumed = null;
+    private long demand = 0;
+    /** True if there may be messages after position which have not been delivered */
+    private boolean signalled = true;
+    private boolean draining = false;
+    /** True once no more messages should be delivered */
+    private boolean cancelled = false;
+    /** True if a terminal signal is waiting to be delivered */
+    private boolean completing = false;
+    /** Error to deliver as the terminal signal, or null to deliver completion */
+    private Throwable error = null;
+
+    FeedSubscription(AbstractFeed feed, AbstractFeedService service, Instant from, UUID serverId, MessageSubscriber subscriber, Predicate<Message>... filters) {
+        this.feed = feed;
+        this.service = service;
+        this.subscriber = subscriber;
+        this.filters = filters;
+        this.predicate = Stream.of(filters).reduce(message->true, Predicate::and);
+        this.position = from;
+        this.serverId = serverId;
+    }
+
+    /** Signal that messages have been stored in the feed.
+     *
+     * @param messages Messages stored
+     */
+    void signal(Message... messages) {
+        Message[] matching = Stream.of(messages).filter(predicate).toArray(Message[]::new);
+        if (matching.length > 0) {
+            synchronized(this) {
+                for (Message message : matching) {
+                    if (isUndelivered(message)) pending.add(message);
+                }
+                if (!caughtUp || demand == 0) fallBehind();
+                scheduleDrain();
+            }
+        }
+    }
+
+    /** Check whether a signalled message will not be found by a search. Called holding the lock.
+     *
+     * When caught up, this is any message later than the last search. Otherwise it is a message
+     * signalled late, between the last search and the point at which the subscription fell behind.
+     *
+     * @param message Message which has been signalled
+     * @return True if the message must be delivered from the pending queue
+     */
+    private boolean isUndelivered(Message message) {
+        if (searched == null) return false;
+        Instant timestamp = message.getTimestamp();
+        return timestamp.isAfter(searched) && (caughtUp || timestamp.isBefore(resumed));
+    }
+
+    /** Stop delivering signalled messages, and search for them instead. Called holding the lock.
+     */
+    private void fallBehind() {
+        if (caughtUp) {
+            caughtUp = false;
+            resumed = position;
+            // The search finds these again
+            pending.removeIf(message->!message.getTimestamp().isBefore(position));
+        }
+        signalled = true;
+    }
+
+    /** Record the delivery of a message. Called holding the lock.
+     *
+     * @param message Message about to be delivered
+     */
+    private void advance(Message message) {
+        Instant timestamp = message.getTimestamp();
+        if (!service.getServerId().equals(serverId) || timestamp.isAfter(position)) {
+            position = timestamp;
+            serverId = service.getServerId();
+            delivered = 1;
+        } else if (timestamp.equals(position)) {
+            delivered++;
+        }
+    }
+
+    @Override
+    public void request(long n) {
+        LOG.entry(n);
+        if (n <= 0) {
+            fail(new IllegalArgumentException("Request must be for at least one message"));
+        } else synchronized(this) {
+            demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            scheduleDrain();
+        }
+        LOG.exit();
+    }
+
+    @Override
+    public void cancel() {
+        LOG.entry();
+        synchronized(this) {
+            cancelled = true;
+            completing = false;
+        }
+        feed.removeSubscription(this);
+        LOG.exit();
+    }
+
+    /** Complete the subscription, because the service is closing.
+     */
+    synchronized void complete() {
+        if (cancelled) return;
+        cancelled = true;
+        completing = true;
+        scheduleDrain();
+    }
+
+    /** Fail the subscription.
+     *
+     * The error replaces any completion not yet delivered, but is ignored once the
+     * subscription has been cancelled or has delivered its terminal signal.
+     *
+     * @param error Error to deliver to the subscriber
+     */
+    private void fail(Throwable error) {
+        synchronized(this) {
+            if (cancelled && !completing) return;
+            cancelled = true;
+            completing = true;
+            if (this.error == null) this.error = error;
+            scheduleDrain();
+        }
+        feed.removeSubscription(this);
+    }
+
+    /** Schedule a delivery, unless one is running or cannot deliver anything. Called holding the lock.
+     */
+    private void scheduleDrain() {
+        if (!draining && (completing || (signalled || !pending.isEmpty()) && demand > 0 && !cancelled)) {
+            draining = true;
+            service.callback(this::drain);
+        }
+    }
+
+    /** Deliver messages until there are no more or demand runs out.
+     */
+    private void drain() {
+        LOG.entry();
+        Throwable failure;
+        while (true) {
+            Message next = null;
+            synchronized(this) {
+                if (completing) {
+                    completing = false;
+                    draining = false;
+                    failure = error;
+                    break;
+                }
+                if (cancelled || demand == 0 || !signalled && pending.isEmpty()) {
+                    draining = false;
+                    LOG.exit();
+                    return;
+                }
+                if (!pending.isEmpty()) {
+                    next = pending.remove();
+                    demand--;
+                    advance(next);
+                } else {
+                    signalled = false;
+                }
+            }
+            if (next != null) {
+                subscriber.onNext(next);
+            } else {
+                search();
+            }
+        }
+        if (failure == null) subscriber.onComplete(); else subscriber.onError(failure);
+        LOG.exit();
+    }
+
+    /** Search for messages after position, and deliver them until there are no more or demand runs out.
+     *
+     * If the search delivers everything it finds, and nothing was signalled meanwhile, the
+     * subscription is caught up.
+     */
+    private void search() {
+        Instant from;
+        long skip;
+        UUID server;
+        synchronized(this) {
+            from = position;
+            skip = delivered;
+            server = serverId;
+        }
+        boolean exhausted = true;
+        try (MessageIterator messages = feed.search(service, server, from, skip > 0, Optional.empty(), Optional.empty(), Optional.of(false), filters)) {
+            while (messages.hasNext()) {
+                Message message = messages.next();
+                if (skip > 0 && message.getTimestamp().equals(from)) {
+                    skip--;
+                    continue;
+                }
+                synchronized(this) {
+                    if (cancelled || demand == 0) {
+                        signalled = true;
+                        exhausted = false;
+                        break;
+                    }
+                    demand--;
+                    advance(message);
+                }
+                subscriber.onNext(message);
+            }
+        } catch (RuntimeException e) {
+            fail(e);
+            return;
+        }
+        synchronized(this) {
+            if (exhausted && !signalled && service.getServerId().equals(serverId)) {
+                caughtUp = true;
+                searched = position;
+            }
+        }
+    }
+}
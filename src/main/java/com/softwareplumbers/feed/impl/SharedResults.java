@@ -0,0 +1,86 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.feed.impl;
+
+import com.softwareplumbers.feed.Message;
+import com.softwareplumbers.feed.MessageIterator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/** Search results shared between several readers.
+ *
+ * Messages are read from the source iterator once, as the furthest reader advances, and
+ * buffered so that every other reader can replay them. The source is closed, and the
+ * buffer released, when the last reader is closed.
+ *
+ * Messages are shared rather than copied, so the source must return messages whose data
+ * can be read more than once, as buffered messages can.
+ *
+ * @author jonathan
+ */
+class SharedResults {
+
+    private final MessageIterator source;
+    private final List<Message> buffered = new ArrayList<>();
+    private int open = 0;
+
+    private class Reader extends MessageIterator {
+        private int position = 0;
+
+        Reader() {
+            super(SharedResults.this::release);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return has(position);
+        }
+
+        @Override
+        public Message next() {
+            return get(position++);
+        }
+    }
+
+    /** Share results between several readers.
+     *
+     * @param source Results to share
+     * @param readers Number of readers
+     * @return Readers, each of which returns every message in the source
+     */
+    static List<MessageIterator> share(MessageIterator source, int readers) {
+        SharedResults shared = new SharedResults(source);
+        List<MessageIterator> result = new ArrayList<>(readers);
+        // create every reader before any can be closed
+        for (int i = 0; i < readers; i++) result.add(shared.new Reader());
+        shared.open = readers;
+        return result;
+    }
+
+    private SharedResults(MessageIterator source) {
+        this.source = source;
+    }
+
+    private synchronized boolean has(int position) {
+        if (position < buffered.size()) return true;
+        if (open == 0 || !source.hasNext()) return false;
+        buffered.add(source.next());
+        return true;
+    }
+
+    private synchronized Message get(int position) {
+        if (!has(position)) throw new NoSuchElementException();
+        return buffered.get(position);
+    }
+
+    private synchronized void release() {
+        if (--open == 0) {
+            source.close();
+            buffered.clear();
+        }
+    }
+}
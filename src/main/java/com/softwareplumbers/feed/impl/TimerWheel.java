@@ -0,0 +1,198 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.feed.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+/** Hashed timing wheel.
+ *
+ * Runs tasks after a delay, with a resolution of one tick. The wheel is a ring of slots,
+ * each holding a doubly linked list of timeouts; a timeout is placed in the slot for the
+ * tick on which it expires, with a count of the full turns of the wheel still to wait.
+ * Scheduling and cancelling a timeout are therefore constant time, however many timeouts
+ * are pending.
+ *
+ * A single daemon thread, started when the first timeout is scheduled, advances the wheel
+ * once per tick and runs the tasks of expired timeouts; it sleeps while no timeouts are
+ * pending. Tasks should be short; anything substantial should be handed off to an executor.
+ * A task never runs before its delay has passed, but may run up to a tick late.
+ *
+ * @author jonathan
+ */
+class TimerWheel implements AutoCloseable {
+
+    private static final XLogger LOG = XLoggerFactory.getXLogger(TimerWheel.class);
+
+    /** A task scheduled on the wheel. */
+    class Timeout {
+        private final Runnable task;
+        private long rounds;
+        private int slot = -1;
+        private Timeout previous;
+        private Timeout next;
+
+        private Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        /** Cancel the timeout.
+         *
+         * @return true if the timeout was cancelled before its task was run
+         */
+        public boolean cancel() {
+            synchronized(TimerWheel.this) {
+                if (slot < 0) return false;
+                unlink(this);
+                return true;
+            }
+        }
+    }
+
+    private final long tickNanos;
+    private final Timeout[] slots;
+    private final int mask;
+    private final String name;
+    private long startTime;
+    /** Next tick to be processed */
+    private long tick = 0;
+    private int pending = 0;
+    private Thread worker = null;
+    private boolean closed = false;
+
+    /** Create a timing wheel.
+     *
+     * @param name Name of the ticking thread
+     * @param tickMillis Duration of a tick in milliseconds
+     * @param size Number of slots in the wheel, rounded up to a power of two
+     */
+    TimerWheel(String name, long tickMillis, int size) {
+        if (tickMillis <= 0 || size <= 0) throw new IllegalArgumentException("Invalid timer wheel parameters");
+        int slotCount = Integer.highestOneBit(size);
+        if (slotCount < size) slotCount <<= 1;
+        this.name = name;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.slots = new Timeout[slotCount];
+        this.mask = slotCount - 1;
+    }
+
+    /** Schedule a task.
+     *
+     * @param delayMillis Delay in milliseconds before the task is run
+     * @param task Task to run
+     * @return A timeout which may be used to cancel the task
+     */
+    synchronized Timeout schedule(long delayMillis, Runnable task) {
+        if (closed) throw new IllegalStateException("Timer wheel is closed");
+        if (worker == null) start();
+        Timeout timeout = new Timeout(task);
+        long now = System.nanoTime() - startTime;
+        // the ticking thread sleeps while the wheel is empty, so bring it up to date
+        if (pending == 0) tick = Math.max(tick, now / tickNanos);
+        long deadline = now + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+        long expiryTick = Math.max(tick, (deadline + tickNanos - 1) / tickNanos);
+        timeout.rounds = (expiryTick - tick) / slots.length;
+        link(timeout, (int)(expiryTick & mask));
+        notifyAll();
+        return timeout;
+    }
+
+    /** Get the number of timeouts waiting to expire.
+     *
+     * @return the number of pending timeouts
+     */
+    synchronized int getPending() {
+        return pending;
+    }
+
+    private void start() {
+        startTime = System.nanoTime();
+        worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    private void link(Timeout timeout, int slot) {
+        timeout.slot = slot;
+        timeout.previous = null;
+        timeout.next = slots[slot];
+        if (timeout.next != null) timeout.next.previous = timeout;
+        slots[slot] = timeout;
+        pending++;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.previous != null) timeout.previous.next = timeout.next; else slots[timeout.slot] = timeout.next;
+        if (timeout.next != null) timeout.next.previous = timeout.previous;
+        timeout.slot = -1;
+        timeout.previous = null;
+        timeout.next = null;
+        pending--;
+    }
+
+    /** Remove the timeouts expiring on the current tick and advance the wheel.
+     *
+     * @return the timeouts which have expired
+     */
+    private synchronized List<Timeout> advance() {
+        List<Timeout> expired = new ArrayList<>();
+        Timeout timeout = slots[(int)(tick & mask)];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.rounds <= 0) {
+                unlink(timeout);
+                expired.add(timeout);
+            } else {
+                timeout.rounds--;
+            }
+            timeout = next;
+        }
+        tick++;
+        return expired;
+    }
+
+    /** Wait until the current tick is due.
+     *
+     * @return false if the wheel has been closed
+     */
+    private synchronized boolean awaitTick() {
+        try {
+            while (!closed && pending == 0) wait();
+            long sleep;
+            while (!closed && (sleep = startTime + tick * tickNanos - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, sleep);
+            }
+        } catch (InterruptedException e) {
+            closed = true;
+        }
+        return !closed;
+    }
+
+    private void run() {
+        LOG.entry();
+        while (awaitTick()) {
+            for (Timeout timeout : advance()) {
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    LOG.warn("Timeout task failed: {}", e.getMessage());
+                }
+            }
+        }
+        LOG.exit();
+    }
+
+    /** Stop the ticking thread. Pending timeouts are discarded.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+}
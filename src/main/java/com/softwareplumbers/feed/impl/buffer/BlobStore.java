@@ -0,0 +1,182 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.feed.impl.buffer;
+
+import com.softwareplumbers.common.pipedstream.InputStreamSupplier;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+/** Storage for the data of large messages, held outside of buckets.
+ *
+ * Message data larger than the threshold is copied into a blob, either a block of
+ * direct (off-heap) memory or a temporary file mapped into memory, and the bucket
+ * keeps only a reference to the blob. This stops a few large messages from
+ * inflating the size of the buckets allocated for all the messages that follow.
+ *
+ * A blob belongs to the bucket which references it, and is released along with
+ * that bucket.
+ *
+ * @author jonathan
+ */
+class BlobStore {
+
+    private static final XLogger LOG = XLoggerFactory.getXLogger(BlobStore.class);
+
+    /** Data of a single message.
+     */
+    static class Blob implements InputStreamSupplier {
+        private final BlobStore store;
+        private final Path file;
+        private final int length;
+        private volatile ByteBuffer content;
+
+        private class BlobInputStream extends InputStream {
+            private final ByteBuffer view;
+
+            public BlobInputStream(ByteBuffer view) {
+                this.view = view;
+            }
+
+            @Override
+            public int read() throws IOException {
+                checkReleased();
+                return view.hasRemaining() ? view.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] buffer, int pos, int len) throws IOException {
+                checkReleased();
+                if (len == 0) return 0;
+                if (!view.hasRemaining()) return -1;
+                int count = Math.min(len, view.remaining());
+                view.get(buffer, pos, count);
+                return count;
+            }
+
+            @Override
+            public long skip(long count) {
+                int skipped = (int)Math.min(Math.max(count, 0), view.remaining());
+                view.position(view.position() + skipped);
+                return skipped;
+            }
+
+            @Override
+            public int available() {
+                return view.remaining();
+            }
+        }
+
+        private Blob(BlobStore store, ByteBuffer content, Path file) {
+            this.store = store;
+            this.content = content;
+            this.file = file;
+            this.length = content.capacity();
+        }
+
+        private void checkReleased() throws IOException {
+            if (content == null) throw new IOException("Message data is no longer available; blob has been released");
+        }
+
+        int length() {
+            return length;
+        }
+
+        @Override
+        public InputStream get() throws IOException {
+            ByteBuffer current = content;
+            if (current == null) throw new IOException("Message data is no longer available; blob has been released");
+            return new BlobInputStream(current.duplicate());
+        }
+
+        @Override
+        public boolean isPersistent() {
+            return true;
+        }
+
+        /** Release the storage held by this blob.
+         *
+         * Subsequent attempts to read the blob will fail.
+         */
+        synchronized void release() {
+            if (content == null) return;
+            content = null;
+            store.size.addAndGet(-length);
+            if (file != null) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    LOG.warn("Failed to delete blob file {}: {}", file, e.getMessage());
+                }
+            }
+        }
+    }
+
+    private final int threshold;
+    private final Path directory;
+    private final AtomicLong size = new AtomicLong(0);
+
+    /** Create a blob store.
+     *
+     * @param threshold Messages with more than this many bytes of data are stored in blobs
+     * @param directory Directory for temporary files, or null to store blobs in direct memory
+     */
+    BlobStore(int threshold, Path directory) {
+        this.threshold = threshold;
+        this.directory = directory;
+    }
+
+    int getThreshold() {
+        return threshold;
+    }
+
+    /** Get the total size of all blobs which have not been released.
+     *
+     * @return size in bytes
+     */
+    long getSize() {
+        return size.get();
+    }
+
+    /** Copy message data into a new blob.
+     *
+     * @param source Array containing message data
+     * @param offset Offset of data in array
+     * @param length Length of data
+     * @return A new blob
+     * @throws IOException if a temporary file could not be written
+     */
+    Blob store(byte[] source, int offset, int length) throws IOException {
+        LOG.entry(offset, length);
+        Blob blob;
+        if (directory == null) {
+            ByteBuffer content = ByteBuffer.allocateDirect(length);
+            content.put(source, offset, length);
+            content.clear();
+            blob = new Blob(this, content, null);
+        } else {
+            Files.createDirectories(directory);
+            Path file = Files.createTempFile(directory, "blob", ".tmp");
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer data = ByteBuffer.wrap(source, offset, length);
+                while (data.hasRemaining()) channel.write(data);
+                blob = new Blob(this, channel.map(FileChannel.MapMode.READ_ONLY, 0, length), file);
+            } catch (IOException e) {
+                Files.deleteIfExists(file);
+                throw LOG.throwing(e);
+            }
+        }
+        size.addAndGet(length);
+        return LOG.exit(blob);
+    }
+}
@@ -5,165 +5,673 @@
  */
 package com.softwareplumbers.feed.impl.buffer;
 
-import com.softwareplumbers.common.pipedstream.InputStreamSupplier;
-import com.softwareplumbers.feed.FeedExceptions;
-import com.softwareplumbers.feed.FeedExceptions.StreamingException;
+import com.softwareplumbers.feed.FeedExceptions.StorageException;
+import static com.softwareplumbers.feed.FeedExceptions.runtime;
 import com.softwareplumbers.feed.Message;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.io.SequenceInputStream;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
 import java.time.Instant;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.NavigableMap;
+import java.util.Objects;
 import java.util.Optional;
-import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
 
-/**
+/** A block of storage holding serialized messages.
+ * 
+ * Each message is stored as a record consisting of an eight byte frame (header
+ * length followed by data length) then the message data and the message headers,
+ * in the binary format described in HeaderRecord.
+ * The header length is written last, so a record with a header length of zero
+ * marks the end of the committed data in the bucket. This allows the bucket to
+ * be re-indexed from its storage alone (see recover).
+ * 
+ * Once a bucket is sealed (no more messages will be added) its content may be
+ * compressed and the raw storage discarded. Reads from a compressed bucket inflate
+ * the content on demand; the inflated content is softly cached so that it can be 
+ * reclaimed under memory pressure.
  *
  * @author jonathan
  */
 class Bucket {
     
-    @FunctionalInterface
-    public interface OverflowHandler {
-        public Message recover(Message message, int size) throws StreamingException;
-    }
+    private static final XLogger LOG = XLoggerFactory.getXLogger(Bucket.class);
+    
+    /** Size of the frame which precedes each record in the bucket */
+    static final int FRAME_SIZE = 8;
+    /** Size of the counts which start a bucket in a snapshot */
+    static final int SNAPSHOT_HEADER_SIZE = 12;
+    /** Size of each time index entry in a snapshot */
+    static final int SNAPSHOT_ENTRY_SIZE = 13;
     
-    private byte[] buffer;
+    private volatile ByteBuffer buffer;
+    private ByteBuffer writeBuffer;
+    private volatile byte[] compressed;
+    private int compressedLength;
+    private volatile SoftReference<ByteBuffer> inflated;
     private int position;
+    private volatile MessageBuffer owner;
+    private volatile int generation;
+    private volatile long lastRead = System.currentTimeMillis();
+    private volatile BucketRegistry.Registration registration;
     
-    private final NavigableMap<Instant, Collection<Message>> timeIndex;
-    private final Map<String, Collection<Message>> idIndex;
+    private final TimeIndex timeIndex;
+    private final Map<String, int[]> idIndex;
+    /** Blobs holding the data of large messages, by record offset */
+    private final Map<Integer, BlobStore.Blob> blobs = new ConcurrentHashMap<>();
+    private volatile long blobSize = 0;
     
-    private class BufferOverflow extends IOException {
-        
+    private BucketSlice slice(int from, int to) {
+        return new BucketSlice(this, generation, from, to - from);
     }
     
-    private OutputStream out = new OutputStream() {
-        @Override
-        public void write(int b) throws BufferOverflow {
-            if (position < buffer.length) {
-                buffer[position++] = (byte) b;
-            } else {
-                throw new BufferOverflow();
-            }
-        }
-        
-        @Override
-        public void write(byte[] input, int pos, int length) throws BufferOverflow {
-            if (position + length <  buffer.length) {
-                System.arraycopy(input, pos, buffer, position, length);
-                position += length;
-            } else {
-                throw new BufferOverflow();
-            }
-        }
-    };
-
-    private InputStreamSupplier chunk(int from, int to) {
-        return InputStreamSupplier.markPersistent(() -> new InputStream() {
-            int position = from;
-
-            @Override
-            public int read() throws IOException {
-                if (position < to) {
-                    return buffer[position++];
-                } else {
-                    return -1;
-                }
-            }
-        });
+    /** Get a view of part of the bucket storage.
+     * 
+     * @param offset Start of view
+     * @param length Length of view
+     * @return A buffer sharing storage with this bucket, with position and limit set to the given range 
+     */
+    ByteBuffer view(int offset, int length) {
+        ByteBuffer view = storage().duplicate();
+        view.limit(offset + length);
+        view.position(offset);
+        return view;
+    }
+    
+    private static ByteBuffer allocate(int size, boolean direct) {
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
     }
 
-    public Bucket(int maxSize) {
-        buffer = new byte[maxSize];
+    /** Create a bucket using the given buffer for storage.
+     * 
+     * The buffer may be a heap buffer or a direct (off-heap) buffer. The bucket takes
+     * ownership of the buffer and will use its entire capacity.
+     * 
+     * @param buffer Storage for serialized messages
+     */
+    public Bucket(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.writeBuffer = buffer.duplicate();
         position = 0;
-        timeIndex = new ConcurrentSkipListMap<>();
+        timeIndex = new TimeIndex();
         idIndex = new ConcurrentHashMap<>();
     }
+
+    public Bucket(int maxSize) {
+        this(allocate(maxSize, false));
+    }
+    
+    /** Create a full bucket from records and indexes read from a snapshot.
+     * 
+     * @param buffer Storage holding exactly the records of the bucket
+     * @param timeIndex Time index of the records
+     * @param idIndex Entries in the time index for each message id
+     */
+    Bucket(ByteBuffer buffer, TimeIndex timeIndex, Map<String, int[]> idIndex) {
+        this.buffer = buffer;
+        this.writeBuffer = buffer.duplicate();
+        this.position = buffer.capacity();
+        this.timeIndex = timeIndex;
+        this.idIndex = idIndex;
+    }
     
     /** Resize a bucket.
      * 
-     * Use BucketPool.resize() rather than this method.
+     * Use BucketPool.resize() rather than this method. The new storage will be
+     * allocated in the same way (on or off heap) as the existing storage.
      * 
      * @param maxSize 
      */
     void resize(int maxSize) {
-        byte[] old = buffer;
-        buffer = new byte[maxSize];
-        System.arraycopy(old, 0, buffer, 0, position);
+        replaceStorage(allocate(maxSize, buffer.isDirect()));
+    }
+    
+    /** Copy the data in this bucket into new storage and use that storage for subsequent writes.
+     * 
+     * Message streams previously returned by this bucket continue to read from the old storage.
+     * 
+     * @param resized new storage
+     */
+    protected final void replaceStorage(ByteBuffer resized) {
+        ByteBuffer old = buffer.duplicate();
+        old.limit(position);
+        old.position(0);
+        ByteBuffer target = resized.duplicate();
+        target.clear();
+        target.put(old);
+        buffer = resized;
+        writeBuffer = resized.duplicate();
+    }
+    
+    /** Take over the storage of another bucket.
+     * 
+     * The other bucket must not be in use, and must not be used subsequently.
+     * 
+     * @param other bucket whose storage is taken
+     */
+    final void replaceStorage(Bucket other) {
+        replaceStorage(other.buffer);
+    }
+    
+    /** Called by the pool when this bucket is no longer used by any buffer.
+     * 
+     * Releases any blobs referenced by the bucket.
+     */
+    void release() {
+        for (BlobStore.Blob blob : blobs.values()) blob.release();
+        blobs.clear();
+        blobSize = 0;
+    }
+    
+    /** Get the total size of the blobs referenced by this bucket.
+     * 
+     * @return size in bytes
+     */
+    long getBlobSize() {
+        return blobSize;
+    }
+    
+    /** Check whether the storage of this bucket can be reused once it is released.
+     * 
+     * Buckets read from a snapshot have read-only storage, so are not recycled.
+     * 
+     * @return true if the bucket may be placed on the pool's free list
+     */
+    boolean isRecyclable() {
+        return compressed == null && !buffer.isReadOnly();
+    }
+    
+    /** Check whether the content of this bucket can be compressed.
+     * 
+     * @return true if the bucket holds uncompressed content in memory
+     */
+    boolean isCompressible() {
+        return compressed == null;
+    }
+    
+    boolean isCompressed() {
+        return compressed != null;
+    }
+    
+    /** Compress the content of this bucket.
+     * 
+     * The bucket itself is not modified; see setCompressed. The bucket must be sealed. 
+     * 
+     * @param level Deflater compression level
+     * @return The compressed content
+     */
+    byte[] compress(int level) {
+        int length = position;
+        ByteBuffer source = buffer.duplicate();
+        source.clear();
+        byte[] content;
+        if (source.hasArray() && source.arrayOffset() == 0) {
+            content = source.array();
+        } else {
+            content = new byte[length];
+            source.get(content);
+        }
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(content, 0, length);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length / 4 + 64);
+            byte[] chunk = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+    
+    /** Replace the storage of this bucket with compressed content.
+     * 
+     * @param content Content previously returned by compress
+     */
+    void setCompressed(byte[] content) {
+        compressedLength = position;
+        compressed = content;
+        buffer = null;
+        writeBuffer = null;
+    }
+    
+    private static ByteBuffer inflate(byte[] content, int length) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(content);
+            byte[] result = new byte[length];
+            int count = 0;
+            while (count < length && !inflater.finished()) {
+                int inflated = inflater.inflate(result, count, length - count);
+                if (inflated == 0 && inflater.needsInput()) break;
+                count += inflated;
+            }
+            if (count < length) throw runtime(new StorageException("Compressed bucket is truncated"));
+            return ByteBuffer.wrap(result);
+        } catch (DataFormatException e) {
+            throw runtime(new StorageException(e));
+        } finally {
+            inflater.end();
+        }
+    }
+    
+    /** Get the storage from which messages are read, inflating compressed content if necessary.
+     * 
+     * @return storage for this bucket
+     */
+    private ByteBuffer storage() {
+        ByteBuffer storage = buffer;
+        if (storage != null) return storage;
+        SoftReference<ByteBuffer> cached = inflated;
+        storage = cached == null ? null : cached.get();
+        if (storage == null) {
+            storage = inflate(compressed, compressedLength);
+            inflated = new SoftReference<>(storage);
+        }
+        return storage;
+    }
+    
+    /** Discard all messages in the bucket so that it can be reused.
+     * 
+     * The generation is incremented so that readers which started before the
+     * reset can detect that the content of the bucket has changed.
+     */
+    void reset() {
+        owner = null;
+        generation++;
+        timeIndex.clear();
+        idIndex.clear();
+        position = 0;
+        buffer.putInt(0, 0);
+    }
+    
+    /** Get the buffer to which this bucket is currently allocated.
+     * 
+     * @return the owning buffer, or null if the bucket is not allocated.
+     */
+    MessageBuffer getOwner() {
+        return owner;
+    }
+    
+    void setOwner(MessageBuffer owner) {
+        this.owner = owner;
+        touch();
     }
     
+    /** Record that messages have been read from this bucket.
+     */
+    void touch() {
+        lastRead = System.currentTimeMillis();
+    }
+    
+    /** Get the time at which messages were last read from this bucket.
+     * 
+     * @return time in milliseconds since the epoch
+     */
+    long getLastRead() {
+        return lastRead;
+    }
+    
+    /** Get the registration of this bucket with its pool.
+     * 
+     * @return the registration, or null if the bucket is not registered
+     */
+    BucketRegistry.Registration getRegistration() {
+        return registration;
+    }
+    
+    void setRegistration(BucketRegistry.Registration registration) {
+        this.registration = registration;
+    }
+    
+    /** Get the number of times this bucket has been reset.
+     * 
+     * @return the bucket generation
+     */
+    int getGeneration() {
+        return generation;
+    }
+    
+    /** Get the size of the storage used by this bucket.
+     * 
+     * @return capacity of the bucket, or its compressed size if the bucket has been compressed
+     */
     public int size() {
-        return buffer.length;
+        ByteBuffer storage = buffer;
+        return storage != null ? storage.capacity() : compressed.length;
+    }
+    
+    /** Check whether this bucket stores data outside the java heap.
+     * 
+     * @return true if message data is stored in direct memory
+     */
+    public boolean isDirect() {
+        ByteBuffer storage = buffer;
+        return storage != null && storage.isDirect();
     }
     
 
-    public Message addMessage(Message message, OverflowHandler handler) throws FeedExceptions.StreamingException {
+    /** Check whether there is space in the bucket for the given number of bytes.
+     * 
+     * @param length Size of records, including frames
+     * @return true if records of the given size can be added
+     */
+    boolean fits(int length) {
+        return position + length <= buffer.capacity();
+    }
+
+    /** Add a serialized message to the bucket.
+     * 
+     * Only one thread may add records to a bucket at any time; MessageBuffer ensures
+     * this by adding records in sequence.
+     * 
+     * @param source Serialized data followed by serialized headers
+     * @param offset Offset of data in source
+     * @param dataLength Length of serialized data
+     * @param headerLength Length of serialized headers
+     * @param message The message which was serialized
+     * @param blob Blob holding the message data, or null if the data is in the record
+     * @return A message reading from the bucket, or null if the record does not fit.
+     */
+    Message addRecord(byte[] source, int offset, int dataLength, int headerLength, Message message, BlobStore.Blob blob) {
         int start = position;
-        Message recovered = message.writeData(out, (e,is)->recoveryHandler(message, e, start, is, handler));
-        if (recovered != null) return recovered;
-        int endData = position;
-        try {
-            message.writeHeaders(out);
-        } catch (StreamingException e) {
-            if (e.getCause() instanceof BufferOverflow) {
-                recovered = message.setData(chunk(start,endData), -1);
-                return handler.recover(recovered, start-position);
+        int endData = start + FRAME_SIZE + dataLength;
+        int end = endData + headerLength;
+        if (end < 0 || end > buffer.capacity()) return null;
+        if (blob != null) {
+            blobs.put(start, blob);
+            blobSize += blob.length();
+        }
+        writeBuffer.position(start + FRAME_SIZE);
+        writeBuffer.put(source, offset, dataLength + headerLength);
+        // Clear the following frame so that a scan of the bucket cannot run into stale data,
+        // then commit this record by writing the header length.
+        if (end + FRAME_SIZE <= buffer.capacity()) buffer.putInt(end, 0);
+        buffer.putInt(start + 4, dataLength);
+        buffer.putInt(start, headerLength);
+        position = end;
+        index(TimeIndex.toNanos(message.getTimestamp()), message.getId(), start, RecordFilter.flagsOf(message));
+        return new BufferedMessageImpl(slice(endData, end), blob == null ? slice(start + FRAME_SIZE, endData) : blob);
+    }
+    
+    private void index(long timestamp, String id, int offset, byte flags) {
+        int entry = timeIndex.append(timestamp, offset, flags);
+        idIndex.merge(id, new int[] { entry }, Bucket::concat);
+    }
+    
+    private static int[] concat(int[] a, int[] b) {
+        int[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+    
+    /** Create a message from the record at the given offset.
+     * 
+     * @param offset Offset of a record in this bucket
+     * @param generation Expected generation of this bucket
+     * @return A message, or null if the bucket has been reset or the record is invalid
+     */
+    private Message getMessage(int offset, int generation) {
+        if (generation != this.generation) return null;
+        ByteBuffer storage = storage();
+        if (offset < 0 || offset + FRAME_SIZE > storage.capacity()) return null;
+        int headerLength = storage.getInt(offset);
+        int dataLength = storage.getInt(offset + 4);
+        int endData = offset + FRAME_SIZE + dataLength;
+        int end = endData + headerLength;
+        if (headerLength <= 0 || dataLength < 0 || endData < 0 || end < 0 || end > storage.capacity()) return null;
+        BlobStore.Blob blob = blobs.isEmpty() ? null : blobs.get(offset);
+        return new BufferedMessageImpl(
+            new BucketSlice(this, generation, endData, headerLength), 
+            blob == null ? new BucketSlice(this, generation, offset + FRAME_SIZE, dataLength) : blob
+        );
+    }
+    
+    /** Test whether the record at the given offset was received from a remote server.
+     * 
+     * Reads the remote server id directly from the header record.
+     * 
+     * @param offset Offset of a record in this bucket
+     * @param remote Id of remote server
+     * @return true if the record has remote info with the given server id
+     */
+    private boolean isFromRemote(int offset, UUID remote) {
+        ByteBuffer storage = storage();
+        if (offset < 0 || offset + FRAME_SIZE > storage.capacity()) return false;
+        int headerLength = storage.getInt(offset);
+        int header = offset + FRAME_SIZE + storage.getInt(offset + 4);
+        if (headerLength < HeaderRecord.FIXED_SIZE || header < 0 || header + HeaderRecord.FIXED_SIZE > storage.capacity()) return false;
+        return storage.getLong(header + HeaderRecord.REMOTE_SERVER_ID) == remote.getMostSignificantBits()
+            && storage.getLong(header + HeaderRecord.REMOTE_SERVER_ID + 8) == remote.getLeastSignificantBits();
+    }
+    
+    /** Test an entry in the time index against a filter, without creating a message.
+     * 
+     * @param entry Entry in the time index
+     * @param filter Filter to apply
+     * @return false if the record cannot match the filter
+     */
+    private boolean accepts(int entry, RecordFilter filter) {
+        return filter.accepts(timeIndex.getFlags(entry))
+            && (filter.getRemote() == null || isFromRemote(timeIndex.getOffset(entry), filter.getRemote()));
+    }
+    
+    /** Get messages for a set of entries in the time index.
+     * 
+     * Entries are tested against the filter before any message is created; the
+     * residual predicate of the filter is applied to the resulting messages.
+     * 
+     * @param entries entries in the time index
+     * @param filter filter to apply
+     * @return Stream of messages
+     */
+    private Stream<Message> getMessages(IntStream entries, RecordFilter filter) {
+        int current = generation;
+        Stream<Message> messages = entries
+            .filter(entry->accepts(entry, filter))
+            .mapToObj(entry->getMessage(timeIndex.getOffset(entry), current))
+            .filter(Objects::nonNull);
+        return filter == RecordFilter.ALL ? messages : messages.filter(filter.getResidual());
+    }
+    
+    /** Rebuild the indexes of this bucket from the records held in its storage.
+     * 
+     * Scanning stops at the first uncommitted or unreadable record; subsequent
+     * messages will be written from that point.
+     * 
+     * @return The number of messages recovered
+     */
+    int recover() {
+        LOG.entry();
+        int count = 0;
+        position = 0;
+        while (position + FRAME_SIZE <= buffer.capacity()) {
+            int headerLength = buffer.getInt(position);
+            int dataLength = buffer.getInt(position + 4);
+            if (headerLength <= 0 || dataLength < 0) break;
+            int endData = position + FRAME_SIZE + dataLength;
+            int end = endData + headerLength;
+            if (endData < 0 || end < 0 || end > buffer.capacity()) break;
+            try {
+                Message buffered = new BufferedMessageImpl(slice(endData, end), slice(position + FRAME_SIZE, endData));
+                index(TimeIndex.toNanos(buffered.getTimestamp()), buffered.getId(), position, RecordFilter.flagsOf(buffered));
+            } catch (RuntimeException e) {
+                LOG.warn("Unreadable record at {}, ignoring remainder of bucket", position);
+                break;
             }
+            position = end;
+            count++;
         }
-        
-        Message buffered = new BufferedMessageImpl(chunk(endData, position), chunk(start, endData));
-        timeIndex.computeIfAbsent(message.getTimestamp(), key->new ConcurrentLinkedQueue<>()).add(buffered);
-        idIndex.computeIfAbsent(message.getId(), key->new ConcurrentLinkedQueue()).add(message);
-        return buffered;
-    }
-    
-    private Message recoveryHandler(Message message, IOException e, int start, InputStream recoveredData, OverflowHandler overflowHandler) throws StreamingException {
-        if (e instanceof BufferOverflow) {
-            if (recoveredData != null) {
-                message = message.setData(()->new SequenceInputStream(chunk(start, position).get(), recoveredData), -1);
-            } 
-            return overflowHandler.recover(message, start-position);
-        } else {
-            throw new StreamingException(e);
+        return LOG.exit(count);
+    }
+
+    /** Write the records and indexes of this bucket to a snapshot.
+     * 
+     * Records are written in index order. The data of any message held in a blob is
+     * written into its record, so the snapshot is self contained.
+     * 
+     * @param out Stream to write to
+     * @see Snapshot
+     */
+    void writeSnapshot(DataOutputStream out) throws IOException {
+        LOG.entry();
+        ByteBuffer storage = storage();
+        int count = timeIndex.size();
+        int[] offsets = new int[count];
+        long length = 0;
+        for (int entry = 0; entry < count; entry++) {
+            int offset = timeIndex.getOffset(entry);
+            BlobStore.Blob blob = blobs.isEmpty() ? null : blobs.get(offset);
+            offsets[entry] = (int)length;
+            length += FRAME_SIZE + storage.getInt(offset) + (blob == null ? storage.getInt(offset + 4) : blob.length());
+            if (length > Integer.MAX_VALUE) throw LOG.throwing(new IOException("Bucket too large to snapshot"));
+        }
+        Map<String, int[]> ids = new HashMap<>();
+        idIndex.forEach((id, entries)->{
+            int[] written = IntStream.of(entries).filter(entry->entry < count).toArray();
+            if (written.length > 0) ids.put(id, written);
+        });
+        ByteArrayOutputStream idBytes = new ByteArrayOutputStream();
+        DataOutputStream idOut = new DataOutputStream(idBytes);
+        idOut.writeInt(ids.size());
+        for (Map.Entry<String, int[]> id : ids.entrySet()) {
+            HeaderRecord.writeString(idOut, id.getKey());
+            idOut.writeInt(id.getValue().length);
+            for (int entry : id.getValue()) idOut.writeInt(entry);
+        }
+        out.writeInt(count);
+        out.writeInt((int)length);
+        out.writeInt(idBytes.size());
+        for (int entry = 0; entry < count; entry++) {
+            out.writeLong(timeIndex.getTimestamp(entry));
+            out.writeInt(offsets[entry]);
+            out.writeByte(timeIndex.getFlags(entry));
+        }
+        idBytes.writeTo(out);
+        byte[] chunk = new byte[8192];
+        for (int entry = 0; entry < count; entry++) {
+            int offset = timeIndex.getOffset(entry);
+            int headerLength = storage.getInt(offset);
+            int dataLength = storage.getInt(offset + 4);
+            BlobStore.Blob blob = blobs.isEmpty() ? null : blobs.get(offset);
+            out.writeInt(headerLength);
+            out.writeInt(blob == null ? dataLength : blob.length());
+            if (blob == null) {
+                copy(view(offset + FRAME_SIZE, dataLength), out, chunk);
+            } else {
+                try (InputStream data = blob.get()) {
+                    int read;
+                    while ((read = data.read(chunk)) > 0) out.write(chunk, 0, read);
+                }
+            }
+            copy(view(offset + FRAME_SIZE + dataLength, headerLength), out, chunk);
+        }
+        LOG.exit();
+    }
+    
+    private static void copy(ByteBuffer source, DataOutputStream out, byte[] chunk) throws IOException {
+        while (source.hasRemaining()) {
+            int length = Math.min(chunk.length, source.remaining());
+            source.get(chunk, 0, length);
+            out.write(chunk, 0, length);
         }
     }
+    
+    /** Get the size of a bucket written by writeSnapshot.
+     * 
+     * @param header The first SNAPSHOT_HEADER_SIZE bytes written by writeSnapshot
+     * @return The number of bytes written by writeSnapshot
+     */
+    static long getSnapshotSize(ByteBuffer header) {
+        int count = header.getInt(0);
+        int length = header.getInt(4);
+        int idLength = header.getInt(8);
+        return SNAPSHOT_HEADER_SIZE + (long)count * SNAPSHOT_ENTRY_SIZE + idLength + length;
+    }
+    
+    /** Read a bucket written by writeSnapshot.
+     * 
+     * The records of the new bucket share storage with the given buffer, which is
+     * advanced past the bucket.
+     * 
+     * @param snapshot Buffer positioned at the start of a bucket
+     * @return A full bucket
+     */
+    static Bucket readSnapshot(ByteBuffer snapshot) {
+        int count = snapshot.getInt();
+        int length = snapshot.getInt();
+        // length of the id index
+        snapshot.getInt();
+        long[] timestamps = new long[count];
+        int[] offsets = new int[count];
+        byte[] flags = new byte[count];
+        for (int entry = 0; entry < count; entry++) {
+            timestamps[entry] = snapshot.getLong();
+            offsets[entry] = snapshot.getInt();
+            flags[entry] = snapshot.get();
+        }
+        int idCount = snapshot.getInt();
+        Map<String, int[]> idIndex = new ConcurrentHashMap<>(idCount * 2);
+        for (int i = 0; i < idCount; i++) {
+            String id = HeaderRecord.readString(snapshot);
+            int[] entries = new int[snapshot.getInt()];
+            for (int j = 0; j < entries.length; j++) entries[j] = snapshot.getInt();
+            idIndex.put(id, entries);
+        }
+        ByteBuffer records = snapshot.slice();
+        records.limit(length);
+        snapshot.position(snapshot.position() + length);
+        return new Bucket(records.slice(), new TimeIndex(timestamps, offsets, flags), idIndex);
+    }
 
     void dumpBucket(PrintWriter out) {
-        for (Instant time : timeIndex.keySet()) {
-            out.println(time + ":" + timeIndex.get(time));
+        int count = timeIndex.size();
+        for (int entry = 0; entry < count; entry++) {
+            out.println(TimeIndex.toInstant(timeIndex.getTimestamp(entry)) + ":" + getMessage(timeIndex.getOffset(entry), generation));
         }
     }
     
     Optional<Instant> firstTimestamp() {
-        return timeIndex.isEmpty() ? Optional.empty() : Optional.of(timeIndex.firstKey());
+        return timeIndex.size() == 0 ? Optional.empty() : Optional.of(TimeIndex.toInstant(timeIndex.getTimestamp(0)));
     }
     
     Optional<Instant> lastTimestamp() {
-        return timeIndex.isEmpty() ? Optional.empty() : Optional.of(timeIndex.lastKey());        
+        int count = timeIndex.size();
+        return count == 0 ? Optional.empty() : Optional.of(TimeIndex.toInstant(timeIndex.getTimestamp(count - 1)));        
     }
     
     boolean isEmpty() {
-        return timeIndex.isEmpty();
+        return timeIndex.size() == 0;
+    }
+    
+    int getMessageCount() {
+        return timeIndex.size();
     }
     
     Stream<Message> getMessages() {
-        return timeIndex.values().stream().flatMap(entries->entries.stream());
+        return getMessages(IntStream.range(0, timeIndex.size()), RecordFilter.ALL);
     }
     
-    Stream<Message> getMessagesAfter(Instant timestamp) {
-        return timeIndex.tailMap(timestamp, false).values().stream().flatMap(entries->entries.stream());
+    Stream<Message> getMessagesAfter(Instant timestamp, RecordFilter filter) {
+        int count = timeIndex.size();
+        return getMessages(IntStream.range(timeIndex.search(TimeIndex.toNanos(timestamp), false), count), filter);
     }
 
     /** Get messages between from and to.
@@ -172,14 +680,27 @@ class Bucket {
      * @param fromInclusive includes any messages with timestamp equal to from
      * @param to Returns messages with timestamp less than or equal to to
      * @param toInclusive includes any messages with timestamp equal to to
+     * @param filter Filter which messages must match
      * @return Stream of messages.
      */
-    Stream<Message> getMessagesBetween(Instant from, boolean fromInclusive, Instant to, boolean toInclusive) {
-        return timeIndex.subMap(from, fromInclusive, to, toInclusive).values().stream().flatMap(entries->entries.stream());
+    Stream<Message> getMessagesBetween(Instant from, boolean fromInclusive, Instant to, boolean toInclusive, RecordFilter filter) {
+        int start = timeIndex.search(TimeIndex.toNanos(from), fromInclusive);
+        int end = timeIndex.search(TimeIndex.toNanos(to), !toInclusive);
+        return start < end ? getMessages(IntStream.range(start, end), filter) : Stream.empty();
+    }
+    
+    /** Get the ids of all messages in this bucket.
+     * 
+     * @return Set of message ids
+     */
+    Set<String> getIds() {
+        return idIndex.keySet();
     }
     
-    Stream<Message> getMessages(String id) {
-        return idIndex.getOrDefault(id, Collections.EMPTY_LIST).stream();
+    Stream<Message> getMessages(String id, RecordFilter filter) {
+        int[] entries = idIndex.get(id);
+        if (entries == null) return Stream.empty();
+        return getMessages(IntStream.of(entries), filter);
     }
         
 }
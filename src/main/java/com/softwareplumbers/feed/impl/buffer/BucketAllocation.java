@@ -0,0 +1,54 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.feed.impl.buffer;
+
+import java.time.Instant;
+import java.util.Optional;
+
+/** A bucket allocated from a buffer pool to a message buffer.
+ *
+ * Provides the information an EvictionPolicy needs to choose buckets for eviction.
+ *
+ * @author jonathan
+ */
+public interface BucketAllocation {
+
+    /** Get the buffer to which the bucket is allocated.
+     *
+     * @return the owning message buffer
+     */
+    MessageBuffer getBuffer();
+
+    /** Get the size of the bucket.
+     *
+     * @return size in bytes
+     */
+    int getSize();
+
+    /** Get the timestamp of the first message in the bucket.
+     *
+     * @return timestamp, or empty if the bucket has no messages
+     */
+    Optional<Instant> getFirstTimestamp();
+
+    /** Get the timestamp of the last message in the bucket.
+     *
+     * @return timestamp, or empty if the bucket has no messages
+     */
+    Optional<Instant> getLastTimestamp();
+
+    /** Get the number of messages in the bucket.
+     *
+     * @return number of messages
+     */
+    int getMessageCount();
+
+    /** Get the time at which messages were last read from the bucket.
+     *
+     * @return time in milliseconds since the epoch at which the bucket was last read, or allocated if it has not been read.
+     */
+    long getLastRead();
+}
@@ -0,0 +1,176 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.feed.impl.buffer;
+
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/** Registry of the buckets allocated from a buffer pool, in allocation order.
+ *
+ * The registry is an intrusive doubly linked list; each bucket holds a handle to
+ * its own registration, so adding, removing and moving a bucket to the end of the
+ * list are constant time operations.
+ *
+ * Updates are synchronized. Iteration is not: an iterator walks the list from the
+ * head, skipping registrations which have been removed. Links are only ever changed
+ * on registrations which are in the list, and a removed registration is never put
+ * back; moving a bucket to the end of the list removes its registration and adds a
+ * new one. A registration removed while an iterator is positioned on it therefore
+ * still links to the registration which followed it, so the iterator continues from
+ * there and visits every bucket which remains registered ahead of it. An iterator
+ * will not visit a bucket added or moved to the end of the list after the iterator
+ * has passed the old end of the list, and may or may not visit one added before that.
+ *
+ * @author jonathan
+ */
+class BucketRegistry {
+
+    /** Registration of a bucket with a buffer.
+     */
+    static class Registration implements BucketAllocation {
+        final Bucket bucket;
+        final MessageBuffer buffer;
+        private volatile Registration previous;
+        private volatile Registration next;
+        private volatile boolean linked;
+
+        private Registration(Bucket bucket, MessageBuffer buffer) {
+            this.bucket = bucket;
+            this.buffer = buffer;
+        }
+
+        @Override
+        public MessageBuffer getBuffer() {
+            return buffer;
+        }
+
+        @Override
+        public int getSize() {
+            return (int)Math.min(Integer.MAX_VALUE, bucket.size() + bucket.getBlobSize());
+        }
+
+        @Override
+        public Optional<Instant> getFirstTimestamp() {
+            return bucket.firstTimestamp();
+        }
+
+        @Override
+        public Optional<Instant> getLastTimestamp() {
+            return bucket.lastTimestamp();
+        }
+
+        @Override
+        public int getMessageCount() {
+            return bucket.getMessageCount();
+        }
+
+        @Override
+        public long getLastRead() {
+            return bucket.getLastRead();
+        }
+    }
+
+    private volatile Registration head;
+    private volatile Registration tail;
+
+    private void link(Registration registration) {
+        registration.previous = tail;
+        registration.next = null;
+        if (tail == null) head = registration; else tail.next = registration;
+        tail = registration;
+        registration.linked = true;
+    }
+
+    private void unlink(Registration registration) {
+        Registration previous = registration.previous;
+        Registration next = registration.next;
+        if (previous == null) head = next; else previous.next = next;
+        if (next == null) tail = previous; else next.previous = previous;
+        registration.linked = false;
+    }
+
+    /** Add a bucket to the end of the registry.
+     *
+     * @param bucket Bucket to add
+     * @param buffer Buffer to which the bucket is allocated
+     * @return The new registration
+     */
+    synchronized Registration add(Bucket bucket, MessageBuffer buffer) {
+        Registration registration = new Registration(bucket, buffer);
+        link(registration);
+        bucket.setRegistration(registration);
+        return registration;
+    }
+
+    /** Remove a bucket from the registry.
+     *
+     * @param bucket Bucket to remove
+     * @return true if the bucket was registered
+     */
+    synchronized boolean remove(Bucket bucket) {
+        Registration registration = bucket.getRegistration();
+        if (registration == null || !registration.linked) return false;
+        unlink(registration);
+        bucket.setRegistration(null);
+        return true;
+    }
+
+    /** Move a bucket to the end of the registry.
+     *
+     * The bucket is given a new registration, so that an iterator positioned on the
+     * old registration can still follow its link.
+     *
+     * @param bucket Bucket to move
+     */
+    synchronized void moveToEnd(Bucket bucket) {
+        Registration registration = bucket.getRegistration();
+        if (registration == null || !registration.linked || registration == tail) return;
+        unlink(registration);
+        Registration moved = new Registration(bucket, registration.buffer);
+        link(moved);
+        bucket.setRegistration(moved);
+    }
+
+    private Iterator<Registration> iterator() {
+        return new Iterator<Registration>() {
+            /** Next registration to visit, unless it has been removed since */
+            Registration current = head;
+
+            private Registration skipRemoved(Registration registration) {
+                while (registration != null && !registration.linked) registration = registration.next;
+                return registration;
+            }
+
+            @Override
+            public boolean hasNext() {
+                current = skipRemoved(current);
+                return current != null;
+            }
+
+            @Override
+            public Registration next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                Registration result = current;
+                current = current.next;
+                return result;
+            }
+        };
+    }
+
+    /** Get the registered buckets, oldest registration first.
+     *
+     * @return stream of registrations
+     */
+    Stream<Registration> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator(), Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.feed.impl.buffer;
+
+import java.time.Duration;
+
+/** Rule for sizing the buckets allocated to a buffer from its observed traffic.
+ *
+ * A new bucket is made large enough to hold the messages expected to arrive over
+ * the target time span, at the buffer's recent arrival rate, and at least the target
+ * number of messages of typical (90th percentile) size. The result is rounded up
+ * to a power of two, so that released buckets can be reused by other buffers, and
+ * limited to the given minimum and maximum. A bucket is always large enough for
+ * the messages which caused it to be allocated.
+ *
+ * Quiet buffers therefore get small buckets, and busy buffers large ones.
+ *
+ * @author jonathan
+ */
+public class BucketSizing {
+
+    private final Duration targetSpan;
+    private final int targetCount;
+    private final int minSize;
+    private final int maxSize;
+
+    /** Create a bucket sizing rule.
+     *
+     * @param targetSpan Time span which a bucket should cover
+     * @param targetCount Number of typical messages a bucket should hold
+     * @param minSize Minimum bucket size in bytes
+     * @param maxSize Maximum bucket size in bytes
+     */
+    public BucketSizing(Duration targetSpan, int targetCount, int minSize, int maxSize) {
+        if (minSize <= 0 || maxSize < minSize) throw new IllegalArgumentException("Bad bucket size limits");
+        this.targetSpan = targetSpan;
+        this.targetCount = targetCount;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+    }
+
+    private static long roundUp(long size) {
+        long highest = Long.highestOneBit(size);
+        return highest == size ? size : highest << 1;
+    }
+
+    /** Calculate the size of a new bucket.
+     *
+     * @param histogram Statistics of the buffer to which the bucket will belong
+     * @param required Size of the records which must fit in the new bucket
+     * @return Size of new bucket in bytes
+     */
+    int calcSize(MessageHistogram histogram, int required) {
+        long size = minSize;
+        double rate = histogram.getByteRate();
+        if (!Double.isNaN(rate)) size = Math.max(size, (long)Math.min(Long.MAX_VALUE / 2, rate * targetSpan.toNanos() / 1e9));
+        size = Math.max(size, (long)histogram.getSizePercentile(0.9) * targetCount);
+        size = Math.min(maxSize, roundUp(size));
+        return (int)Math.max(size, required);
+    }
+
+    public Duration getTargetSpan() {
+        return targetSpan;
+    }
+
+    public int getTargetCount() {
+        return targetCount;
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.feed.impl.buffer;
+
+import com.softwareplumbers.common.pipedstream.InputStreamSupplier;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/** A view of a range of bytes stored in a bucket.
+ *
+ * Reading from a slice reads directly from bucket storage, without copying the
+ * data out of the bucket first. Because buckets may be recycled by the pool once
+ * they are deallocated, a slice remembers the generation of the bucket it was
+ * created from; any attempt to read the slice after the bucket is reset results
+ * in an IOException.
+ *
+ * @author jonathan
+ */
+class BucketSlice implements InputStreamSupplier {
+
+    private static final int TRANSFER_SIZE = 8192;
+
+    private final Bucket bucket;
+    private final int generation;
+    private final int offset;
+    private final int length;
+
+    private class SliceInputStream extends InputStream {
+        private final ByteBuffer view;
+
+        public SliceInputStream(ByteBuffer view) {
+            this.view = view;
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkGeneration();
+            return view.hasRemaining() ? view.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int pos, int len) throws IOException {
+            checkGeneration();
+            if (len == 0) return 0;
+            if (!view.hasRemaining()) return -1;
+            int count = Math.min(len, view.remaining());
+            view.get(buffer, pos, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long count) {
+            int skipped = (int)Math.min(Math.max(count, 0), view.remaining());
+            view.position(view.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return view.remaining();
+        }
+    }
+
+    BucketSlice(Bucket bucket, int generation, int offset, int length) {
+        this.bucket = bucket;
+        this.generation = generation;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    private void checkGeneration() throws IOException {
+        if (bucket.getGeneration() != generation) throw new IOException("Message data is no longer available; bucket has been reused");
+    }
+
+    /** Get a view of the slice content.
+     *
+     * @return A buffer sharing storage with the bucket, positioned at the start of the slice
+     * @throws IOException if the bucket has been reused
+     */
+    ByteBuffer view() throws IOException {
+        checkGeneration();
+        return bucket.view(offset, length);
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /** Get a slice of part of this slice.
+     *
+     * @param offset Offset relative to the start of this slice
+     * @param length Length of the new slice
+     * @return A slice of the same bucket
+     */
+    BucketSlice slice(int offset, int length) {
+        return new BucketSlice(bucket, generation, this.offset + offset, length);
+    }
+
+    @Override
+    public InputStream get() throws IOException {
+        return new SliceInputStream(view());
+    }
+
+    @Override
+    public boolean isPersistent() {
+        return true;
+    }
+
+    /** Get the slice content as a read-only byte buffer.
+     *
+     * The returned buffer shares storage with the bucket.
+     *
+     * @return A read-only buffer positioned at the start of the slice.
+     * @throws IOException if the bucket has been reused
+     */
+    public ByteBuffer asByteBuffer() throws IOException {
+        return view().asReadOnlyBuffer();
+    }
+
+    /** Write the slice content to a channel.
+     *
+     * @param channel Channel to write to
+     * @return Number of bytes written
+     * @throws IOException on error, or if the bucket has been reused
+     */
+    public long transferTo(WritableByteChannel channel) throws IOException {
+        ByteBuffer view = view();
+        while (view.hasRemaining()) {
+            channel.write(view);
+            checkGeneration();
+        }
+        return length;
+    }
+
+    /** Write the slice content to an output stream.
+     *
+     * Heap storage is written in a single call; direct storage is copied in blocks.
+     *
+     * @param out Stream to write to
+     * @return Number of bytes written
+     * @throws IOException on error, or if the bucket has been reused
+     */
+    public long writeTo(OutputStream out) throws IOException {
+        ByteBuffer view = view();
+        if (view.hasArray()) {
+            out.write(view.array(), view.arrayOffset() + view.position(), view.remaining());
+        } else {
+            byte[] block = new byte[Math.min(TRANSFER_SIZE, length)];
+            while (view.hasRemaining()) {
+                int count = Math.min(block.length, view.remaining());
+                view.get(block, 0, count);
+                checkGeneration();
+                out.write(block, 0, count);
+            }
+        }
+        checkGeneration();
+        return length;
+    }
+}
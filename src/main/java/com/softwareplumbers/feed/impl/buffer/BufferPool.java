@@ -5,19 +5,90 @@
  */
 package com.softwareplumbers.feed.impl.buffer;
 
+import com.softwareplumbers.feed.FeedExceptions.StorageException;
+import static com.softwareplumbers.feed.FeedExceptions.runtime;
 import com.softwareplumbers.feed.Message;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
 import org.slf4j.ext.XLogger;
 import org.slf4j.ext.XLoggerFactory;
 
-/**
+/** Pool of memory from which message buffers allocate buckets.
+ * 
+ * The pool keeps track of the total size of all buckets allocated and will
+ * de-allocate buckets when deallocateBuckets is called and the pool size
+ * exceeds maxSize.
+ * 
+ * If the pool is created with offHeap set, bucket storage is allocated with 
+ * ByteBuffer.allocateDirect so that message data does not sit on the java
+ * heap. Off-heap storage is tracked separately (see getOffHeapSize) but still
+ * counts against maxSize.
+ * 
+ * If the pool is created with a directory, buffers created with a name store
+ * their buckets in memory-mapped segment files under that directory (one
+ * sub-directory per buffer). Such a buffer re-opens any existing segment files
+ * when it is created, so its messages survive a restart. Segment files are
+ * deleted when their buckets are de-allocated.
+ * 
+ * If recycling is enabled (see setMaxFreeSize), released in-memory buckets are 
+ * kept on a free list, grouped by size, and are reset and reused by subsequent 
+ * requests for a bucket of the same size. This avoids repeatedly allocating large 
+ * arrays under steady load; free buckets do not count against maxSize. Recycling
+ * is off by default, because messages read from a buffer refer to the storage of
+ * their bucket: once the bucket is reused, reading such a message fails. Only
+ * enable it where messages are consumed before their buckets can be evicted.
+ * 
+ * If large message storage is enabled (see setLargeMessageStorage), the data of
+ * messages over a threshold size is stored in separate blobs rather than in the
+ * buckets of in-memory buffers, so that buckets can stay the same size. Blobs count
+ * against maxSize and are released along with the bucket which references them.
+ * 
+ * Buffers normally allocate new buckets the same size as their first bucket. If
+ * a bucket sizing rule is set (see setBucketSizing), new buckets are instead sized
+ * from the message sizes and arrival rate observed by each buffer.
+ * 
+ * If compression is enabled (see setCompression), buckets which a buffer has
+ * finished writing to are compressed in the background. Compressed buckets count
+ * against maxSize at their compressed size, and are inflated on demand when read.
+ * Buckets stored in segment files are not compressed.
+ * 
+ * If a snapshot file is set (see setSnapshot), the buckets of named in-memory
+ * buffers can be written to the file on a clean shutdown (see writeSnapshot), and
+ * are restored, memory-mapped from the file, when buffers of the same name are
+ * next created. A restarted node can then answer searches from its own history.
+ * 
+ * If a journal is set (see setJournal), messages added to named in-memory buffers
+ * are also appended to a write-ahead journal, and replayed into the buffers when 
+ * they are next created, so that they survive an unclean shutdown.
+ * 
+ * Which buckets are de-allocated is decided by an EvictionPolicy. By default this
+ * is EvictionPolicy.FIFO, which evicts the oldest buckets in the pool whatever
+ * buffer they belong to. A RetentionPolicy evicts buckets by the age, size, and
+ * message count of each feed; with a sweeper set (see setSweeper), buckets are
+ * de-allocated periodically in the background rather than only on demand.
  *
  * @author jonathan
  */
@@ -33,56 +104,224 @@ public class BufferPool {
         }; 
     };
     
-    private class BucketRegistration {
-        public final Bucket bucket;
-        public final MessageBuffer buffer;
-        public BucketRegistration(Bucket bucket, MessageBuffer buffer) {
-            this.bucket = bucket;
-            this.buffer = buffer;
-        }
-    }
-
     private long maxSize;
+    private final boolean offHeap;
+    private final Path directory;
     private final AtomicLong currentSize = new AtomicLong(0);
-    private final ConcurrentLinkedDeque<BucketRegistration> registry = new ConcurrentLinkedDeque<>();
+    private final AtomicLong offHeapSize = new AtomicLong(0);
+    private final BucketRegistry registry = new BucketRegistry();
+    private final Map<Integer, Deque<Bucket>> freeList = new HashMap<>();
+    private long maxFreeSize;
+    private long freeSize = 0;
+    private final AtomicLong freeListHits = new AtomicLong(0);
+    private final AtomicLong freeListMisses = new AtomicLong(0);
+    private volatile EvictionPolicy evictionPolicy = EvictionPolicy.FIFO;
+    private volatile Executor compressionExecutor = null;
+    private volatile int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private final AtomicLong compressionSavings = new AtomicLong(0);
+    private volatile BlobStore blobStore = null;
+    private volatile BucketSizing bucketSizing = null;
+    private final Map<String, MessageBuffer> namedBuffers = new ConcurrentHashMap<>();
+    private volatile Path snapshotFile = null;
+    private final Map<String, NavigableMap<Instant, Bucket>> snapshot = new ConcurrentHashMap<>();
+    private volatile Journal journal = null;
+    private ScheduledFuture<?> sweeper = null;
     
-    public BufferPool(long maxSize) {
+    /** Create a buffer pool.
+     * 
+     * @param maxSize Maximum size of pool in bytes
+     * @param offHeap If true, store bucket data in direct (off-heap) memory
+     */
+    public BufferPool(long maxSize, boolean offHeap) {
         this.maxSize = maxSize;
+        this.offHeap = offHeap;
+        this.directory = null;
+        this.maxFreeSize = 0;
+    }
+    
+    /** Create a buffer pool which stores named buffers in memory-mapped files.
+     * 
+     * @param maxSize Maximum size of pool in bytes
+     * @param directory Directory in which segment files are stored
+     */
+    public BufferPool(long maxSize, Path directory) {
+        this.maxSize = maxSize;
+        this.offHeap = false;
+        this.directory = directory;
+        this.maxFreeSize = 0;
+    }
+
+    public BufferPool(long maxSize) {
+        this(maxSize, false);
+    }
+    
+    private void addSize(Bucket bucket, long size) {
+        LOG.debug("pool size: {}", currentSize.addAndGet(size));
+        if (bucket.isDirect()) offHeapSize.addAndGet(size);
+        MessageBuffer owner = bucket.getOwner();
+        if (owner != null) owner.addSize(size);
+    }
+    
+    /** Account for a blob added to a bucket.
+     * 
+     * @param bucket Bucket referencing the blob
+     * @param size Size of blob
+     */
+    void addBlobSize(Bucket bucket, long size) {
+        LOG.debug("pool size: {}", currentSize.addAndGet(size));
+        MessageBuffer owner = bucket.getOwner();
+        if (owner != null) owner.addSize(size);
     }
     
     /** Get a bucket from the pool and allocate it to the given buffer.
      * 
      * @param size
+     * @param from Start time of the bucket
      * @param buffer
      * @return 
      */
-    Bucket getBucket(int size, MessageBuffer buffer) {
-        LOG.entry(size, lazy(()->buffer.now()));
-        Bucket bucket = new Bucket(size);
-        registry.add(new BucketRegistration(bucket, buffer));
-        LOG.debug("pool size: {}", currentSize.addAndGet(size));
+    Bucket getBucket(int size, Instant from, MessageBuffer buffer) {
+        LOG.entry(size, from, lazy(()->buffer.now()));
+        SegmentDirectory segments = buffer.getSegments();
+        Bucket bucket = segments != null 
+            ? MappedBucket.create(segments, from, size)
+            : takeFreeBucket(size);
+        if (bucket == null) bucket = new Bucket(offHeap ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size));
+        registerBucket(bucket, buffer);
         return LOG.exit(bucket);
     }
     
+    /** Take a bucket of the given size from the free list.
+     * 
+     * @param size Required bucket size
+     * @return A reset bucket, or null if no bucket of that size is free
+     */
+    private Bucket takeFreeBucket(int size) {
+        Bucket bucket = null;
+        synchronized(freeList) {
+            Deque<Bucket> free = freeList.get(size);
+            if (free != null) {
+                bucket = free.poll();
+                if (free.isEmpty()) freeList.remove(size);
+                if (bucket != null) freeSize -= size;
+            }
+        }
+        if (bucket == null) {
+            freeListMisses.incrementAndGet();
+        } else {
+            freeListHits.incrementAndGet();
+        }
+        return bucket;
+    }
+    
+    /** Return a released bucket to the free list, if there is room.
+     * 
+     * @param bucket Bucket which is no longer used by any buffer
+     */
+    private void recycle(Bucket bucket) {
+        if (!bucket.isRecyclable()) return;
+        int size = bucket.size();
+        synchronized(freeList) {
+            if (freeSize + size <= maxFreeSize) {
+                bucket.reset();
+                freeList.computeIfAbsent(size, key->new ArrayDeque<>()).add(bucket);
+                freeSize += size;
+            }
+        }
+    }
+    
+    /** Add an existing bucket to the pool.
+     * 
+     * Used when a buffer re-opens buckets from its segment files.
+     * 
+     * @param bucket
+     * @param buffer 
+     */
+    void registerBucket(Bucket bucket, MessageBuffer buffer) {
+        bucket.setOwner(buffer);
+        registry.add(bucket, buffer);
+        addSize(bucket, bucket.size());
+    }
+    
+    /** Get the segment directory for a named buffer.
+     * 
+     * @param name Buffer name
+     * @return A segment directory, or null if this pool does not use mapped files
+     */
+    SegmentDirectory getSegments(String name) {
+        return directory == null ? null : new SegmentDirectory(directory, name);
+    }
+    
     /** Release buckets from the pool.
      * 
      * @param buckets 
      */
     void releaseBuckets(Collection<Bucket> buckets) {
         LOG.entry(lazy(()->buckets.size()));
-        int count = buckets.size();
-        Iterator<BucketRegistration> registrations = registry.iterator();
-        while (registrations.hasNext() && count > 0) {
-            BucketRegistration registration = registrations.next();
-            if (buckets.contains(registration.bucket)) {
-                count--;
-                LOG.debug("pool size: {}", currentSize.addAndGet(-registration.bucket.size()));
-                registrations.remove();
+        for (Bucket bucket : buckets) {
+            boolean removed;
+            // Lock the bucket so that it cannot be compressed while its size is being removed from the pool
+            synchronized(bucket) {
+                removed = registry.remove(bucket);
+                if (removed) {
+                    addSize(bucket, -bucket.size());
+                    addBlobSize(bucket, -bucket.getBlobSize());
+                }
+            }
+            if (removed) {
+                bucket.release();
+                recycle(bucket);
             }
         }
         LOG.exit();
     }
 
+    /** Called by a buffer when it will add no more messages to a bucket.
+     * 
+     * If compression is enabled, schedules compression of the bucket.
+     * 
+     * @param bucket Bucket which has been sealed
+     */
+    void sealBucket(Bucket bucket) {
+        Executor executor = compressionExecutor;
+        if (executor == null || !bucket.isCompressible()) return;
+        int generation = bucket.getGeneration();
+        int level = compressionLevel;
+        executor.execute(()->compressBucket(bucket, generation, level));
+    }
+    
+    private void compressBucket(Bucket bucket, int generation, int level) {
+        LOG.entry(bucket, generation, level);
+        if (bucket.getGeneration() != generation || bucket.getRegistration() == null) {
+            LOG.exit();
+            return;
+        }
+        byte[] content;
+        try {
+            content = bucket.compress(level);
+        } catch (RuntimeException e) {
+            // Most likely the bucket was released and reused while being compressed
+            LOG.debug("Failed to compress bucket", e);
+            LOG.exit();
+            return;
+        }
+        synchronized(bucket) {
+            // A bucket that is still registered has not been released, so cannot have been reset
+            if (bucket.getGeneration() == generation && bucket.getRegistration() != null && bucket.isCompressible() && content.length < bucket.size()) {
+                int before = bucket.size();
+                boolean direct = bucket.isDirect();
+                bucket.setCompressed(content);
+                long saved = before - content.length;
+                LOG.debug("pool size: {}", currentSize.addAndGet(-saved));
+                if (direct) offHeapSize.addAndGet(-before);
+                MessageBuffer owner = bucket.getOwner();
+                if (owner != null) owner.addSize(-saved);
+                compressionSavings.addAndGet(saved);
+            }
+        }
+        LOG.exit();
+    }
+    
     /** Provide a way to continue using an old bucket.
      * 
      * TODO: refactor MessageBuffer so a buffer can exist with no buckets in it. Then this is not needed.
@@ -91,38 +330,99 @@ public class BufferPool {
      */
     void reallocateBucket(Bucket bucket) {
         LOG.entry(bucket);
-        boolean more = true;
-        Iterator<BucketRegistration> registrations = registry.iterator();
-        while (registrations.hasNext() && more) {
-            BucketRegistration registration = registrations.next();
-            if (bucket == registration.bucket) {
-                more = false;
-                registrations.remove();
-                registry.add(registration);
-            }
-        }
+        registry.moveToEnd(bucket);
         LOG.exit();
     }
     
     /** De-allocate buckets.
      * 
-     * De-allocate buckets from the pool until the pool size is back under
-     * the maxSize threshold.
+     * De-allocate buckets selected by the pool's eviction policy until the
+     * policy selects no more. With the default policy, this de-allocates the
+     * oldest buckets until the pool size is back under the maxSize threshold, or
+     * until only buckets currently being written to remain.
      * 
      */ 
     public void deallocateBuckets() {
         LOG.entry();
-        while (currentSize.get() > maxSize) {
-            BucketRegistration registration = registry.getFirst();
-            registration.buffer.deallocateBucket(registration.bucket);
+        Iterator<BucketAllocation> victims = evictionPolicy.selectVictims(this);
+        while (victims.hasNext()) {
+            BucketRegistry.Registration registration = (BucketRegistry.Registration)victims.next();
+            if (!registration.buffer.deallocateBucket(registration.bucket)) break;
+        }
+        Journal current = journal;
+        if (current != null) {
+            namedBuffers.values().stream()
+                .map(MessageBuffer::firstTimestamp)
+                .filter(Optional::isPresent)
+                .map(Optional::get)
+                .min(Instant::compareTo)
+                .ifPresent(current::trim);
         }
         LOG.exit();
     }
     
+    /** Get the buckets which may currently be evicted.
+     * 
+     * @return allocated buckets, oldest first, excluding the bucket each buffer is currently writing to.
+     */
+    Stream<BucketAllocation> getEvictionCandidates() {
+        return registry.stream()
+            .filter(registration->!registration.buffer.isCurrent(registration.bucket))
+            .map(BucketAllocation.class::cast);
+    }
+    
+    /** Set the policy used to select buckets for de-allocation.
+     * 
+     * @param evictionPolicy policy to use
+     */
+    public void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+        this.evictionPolicy = evictionPolicy;
+    }
+    
+    public EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+    
+    /** Run deallocateBuckets periodically in the background.
+     * 
+     * With a policy such as RetentionPolicy, which evicts buckets whatever the size of
+     * the pool, this removes expired messages without waiting for the pool to fill.
+     * Any sweeper previously set is stopped.
+     * 
+     * @param executor Executor on which to run the sweeper, or null to stop sweeping
+     * @param intervalMillis Interval in milliseconds between sweeps
+     */
+    public void setSweeper(ScheduledExecutorService executor, long intervalMillis) {
+        LOG.entry(executor, intervalMillis);
+        if (executor != null && intervalMillis <= 0) throw new IllegalArgumentException("Sweep interval must be positive");
+        ScheduledFuture<?> current;
+        synchronized(this) {
+            current = sweeper;
+            sweeper = executor == null ? null : executor.scheduleWithFixedDelay(this::sweep, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+        if (current != null) current.cancel(false);
+        LOG.exit();
+    }
+    
+    private void sweep() {
+        try {
+            deallocateBuckets();
+        } catch (RuntimeException e) {
+            LOG.warn("Sweep of buffer pool failed: {}", e.getMessage());
+        }
+    }
+    
     void resizeBucket(Bucket bucket, int size) {
         LOG.entry(bucket, size);
-        currentSize.addAndGet(size - bucket.size());
-        bucket.resize(size);
+        addSize(bucket, size - bucket.size());
+        Bucket free = bucket.isRecyclable() ? takeFreeBucket(size) : null;
+        if (free != null) {
+            // Take over the storage of the free bucket; the old storage is not recycled since
+            // the message currently being written may still be reading from it.
+            bucket.replaceStorage(free);
+        } else {
+            bucket.resize(size);
+        }
         LOG.exit();
     }
     
@@ -137,10 +437,306 @@ public class BufferPool {
      */
     public MessageBuffer createBuffer(MessageClock clock, int size) {
         LOG.entry(size);
-        return LOG.exit(new MessageBuffer(this, clock, size));
+        return LOG.exit(new MessageBuffer(this, clock, size, null));
+    }
+    
+    /** Create a new named message buffer in this pool.
+     * 
+     * If the pool stores buffers in mapped files, any messages previously stored
+     * in a buffer with the same name are recovered.
+     * 
+     * @param clock Clock used to create message timestamps
+     * @param size Size of buffer to create
+     * @param name Name of buffer, which must be unique within the pool
+     * @return A new message buffer.
+     */
+    public MessageBuffer createBuffer(MessageClock clock, int size, String name) {
+        LOG.entry(size, name);
+        MessageBuffer buffer = new MessageBuffer(this, clock, size, name);
+        if (directory == null && name != null) {
+            namedBuffers.put(name, buffer);
+            // the buffer now counts towards trimming the journal, so replayed segments may be trimmed
+            Journal current = journal;
+            if (current != null) current.replayComplete();
+        }
+        return LOG.exit(buffer);
+    }
+    
+    /** Keep the contents of named buffers in a snapshot file across restarts.
+     * 
+     * If the snapshot file exists it is loaded immediately, and named buffers
+     * subsequently created in this pool start with the buckets they had when the 
+     * snapshot was written. The file is deleted once loaded, so that a snapshot
+     * is only ever loaded after the clean shutdown which wrote it. An unreadable
+     * snapshot is logged and renamed with a timestamp and the suffix .unreadable, so that it is
+     * neither loaded again nor replaced by the next snapshot written.
+     * 
+     * Pools which store buffers in segment files do not need a snapshot.
+     * 
+     * @param file Snapshot file, or null to disable snapshots
+     */
+    public void setSnapshot(Path file) {
+        LOG.entry(file);
+        snapshotFile = file;
+        snapshot.clear();
+        if (file != null && Files.exists(file)) {
+            Map<String, NavigableMap<Instant, Bucket>> loaded = null;
+            try {
+                loaded = Snapshot.read(file);
+            } catch (IOException e) {
+                LOG.warn("Ignoring snapshot file {}: {}", file, e.getMessage());
+            }
+            try {
+                if (loaded != null) {
+                    snapshot.putAll(loaded);
+                    // the mappings remain valid after the file is deleted
+                    Files.delete(file);
+                } else {
+                    Files.move(file, file.resolveSibling(file.getFileName() + "." + System.currentTimeMillis() + ".unreadable"));
+                }
+            } catch (IOException e) {
+                LOG.warn("Could not remove snapshot file {}: {}", file, e.getMessage());
+            }
+        }
+        LOG.exit();
+    }
+    
+    public Optional<Path> getSnapshot() {
+        return Optional.ofNullable(snapshotFile);
+    }
+    
+    /** Write the contents of all named buffers to the snapshot file.
+     * 
+     * Called on a clean shutdown, once no more messages will be added. Does nothing
+     * if snapshots are not enabled.
+     */
+    public void writeSnapshot() {
+        LOG.entry();
+        Path file = snapshotFile;
+        if (file != null) {
+            try {
+                Snapshot.write(file, namedBuffers);
+            } catch (IOException e) {
+                throw LOG.throwing(runtime(new StorageException(e)));
+            }
+        }
+        LOG.exit();
+    }
+    
+    /** Journal messages added to named in-memory buffers, so that they survive an unclean shutdown.
+     * 
+     * Any journal already in the directory is read, and its messages are replayed into
+     * named buffers subsequently created in this pool, after any buckets restored from
+     * a snapshot. 
+     * 
+     * With Sync.MESSAGE, each append waits for the journal to be forced to disk, though
+     * its messages may be visible to readers of the buffer a little before it returns;
+     * concurrent appends share a single force. With Sync.GROUP, the journal is forced to disk every groupCommitMillis in the background,
+     * so a failure of the operating system can lose messages added in that interval. With 
+     * Sync.OS, the journal is written to disk when the operating system chooses.
+     * 
+     * Pools which store buffers in segment files do not need a journal.
+     * 
+     * @param directory Directory in which journal segments are stored
+     * @param sync When the journal is forced to disk
+     * @param groupCommitMillis Interval in milliseconds between forces, for Sync.GROUP
+     */
+    public void setJournal(Path directory, Journal.Sync sync, long groupCommitMillis) {
+        LOG.entry(directory, sync, groupCommitMillis);
+        if (sync == Journal.Sync.GROUP && groupCommitMillis <= 0) throw new IllegalArgumentException("Group commit interval must be positive");
+        closeJournal();
+        try {
+            journal = new Journal(directory, sync, groupCommitMillis);
+        } catch (IOException e) {
+            throw LOG.throwing(runtime(new StorageException(e)));
+        }
+        LOG.exit();
+    }
+    
+    Journal getJournal() {
+        return journal;
+    }
+    
+    /** Force the journal to disk and stop journaling.
+     * 
+     * Called on a clean shutdown, once no more messages will be added. Does nothing
+     * if there is no journal.
+     */
+    public void closeJournal() {
+        Journal current = journal;
+        journal = null;
+        if (current != null) current.close();
+    }
+    
+    /** Get the names of buffers with content to restore.
+     * 
+     * Includes every buffer with segment files in the pool's directory, whether or not
+     * it has been created yet, and buffers with content from a snapshot or journal which
+     * have not yet been created.
+     * 
+     * @return Buffer names
+     */
+    public Stream<String> getRestoredNames() {
+        Journal current = journal;
+        Stream<String> journaled = current == null ? Stream.empty() : current.getReplayNames().stream();
+        Stream<String> mapped = directory == null || !Files.isDirectory(directory) ? Stream.empty() : SegmentDirectory.getNames(directory);
+        return Stream.concat(Stream.concat(mapped, snapshot.keySet().stream()), journaled).distinct();
+    }
+    
+    /** Get the names of buffers in the loaded snapshot which have not yet been created.
+     * 
+     * @return Buffer names
+     */
+    public Stream<String> getSnapshotNames() {
+        return snapshot.keySet().stream();
+    }
+    
+    /** Take the buckets restored from a snapshot for a named buffer.
+     * 
+     * @param name Buffer name
+     * @return Buckets keyed by start time, which may be empty
+     */
+    NavigableMap<Instant, Bucket> takeSnapshot(String name) {
+        NavigableMap<Instant, Bucket> buckets = snapshot.remove(name);
+        return buckets == null ? Collections.emptyNavigableMap() : buckets;
     }
     
     public long getSize() {
         return currentSize.get();
     }
+    
+    public long getMaxSize() {
+        return maxSize;
+    }
+    
+    /** Get the amount of pool memory allocated outside the java heap.
+     * 
+     * @return Total size in bytes of all buckets using direct memory.
+     */
+    public long getOffHeapSize() {
+        return offHeapSize.get();
+    }
+    
+    /** Get the total size of buckets held on the free list.
+     * 
+     * @return size in bytes of buckets available for reuse
+     */
+    public long getFreeSize() {
+        synchronized(freeList) {
+            return freeSize;
+        }
+    }
+    
+    /** Set the maximum total size of buckets retained on the free list.
+     * 
+     * Buckets released when the free list is full are left for the garbage collector.
+     * The default is zero. Messages already read from a bucket which is recycled become
+     * unreadable, so recycling should only be enabled where messages are consumed before
+     * their buckets can be evicted.
+     * 
+     * @param maxFreeSize size in bytes; zero disables recycling
+     */
+    public void setMaxFreeSize(long maxFreeSize) {
+        synchronized(freeList) {
+            this.maxFreeSize = maxFreeSize;
+        }
+    }
+    
+    /** Enable or disable compression of sealed buckets.
+     * 
+     * @param executor Executor on which buckets are compressed, or null to disable compression
+     * @param level Deflater compression level (0-9)
+     */
+    public void setCompression(Executor executor, int level) {
+        this.compressionLevel = level;
+        this.compressionExecutor = executor;
+    }
+    
+    /** Enable or disable compression of sealed buckets at the default compression level.
+     * 
+     * @param executor Executor on which buckets are compressed, or null to disable compression
+     */
+    public void setCompression(Executor executor) {
+        setCompression(executor, Deflater.DEFAULT_COMPRESSION);
+    }
+    
+    /** Set the rule used to size new buckets.
+     * 
+     * @param bucketSizing Sizing rule, or null to size new buckets like the current bucket of a buffer
+     */
+    public void setBucketSizing(BucketSizing bucketSizing) {
+        this.bucketSizing = bucketSizing;
+    }
+    
+    public BucketSizing getBucketSizing() {
+        return bucketSizing;
+    }
+    
+    /** Store the data of large messages outside buckets, in direct memory.
+     * 
+     * @param threshold Messages with more data than this number of bytes are stored out of line; zero or less disables
+     */
+    public void setLargeMessageStorage(int threshold) {
+        setLargeMessageStorage(threshold, null);
+    }
+    
+    /** Store the data of large messages outside buckets.
+     * 
+     * @param threshold Messages with more data than this number of bytes are stored out of line; zero or less disables
+     * @param directory Directory in which to create temporary files for message data, or null to use direct memory
+     */
+    public void setLargeMessageStorage(int threshold, Path directory) {
+        this.blobStore = threshold > 0 ? new BlobStore(threshold, directory) : null;
+    }
+    
+    BlobStore getBlobStore() {
+        return blobStore;
+    }
+    
+    /** Get the total size of message data stored outside buckets.
+     * 
+     * @return size in bytes of blobs which have not been released
+     */
+    public long getLargeMessageSize() {
+        BlobStore store = blobStore;
+        return store == null ? 0 : store.getSize();
+    }
+    
+    /** Get the total space saved by compressing buckets.
+     * 
+     * Includes buckets which have since been de-allocated.
+     * 
+     * @return bytes saved
+     */
+    public long getCompressionSavings() {
+        return compressionSavings.get();
+    }
+    
+    /** Get the number of bucket requests satisfied from the free list.
+     * 
+     * @return number of free list hits
+     */
+    public long getFreeListHits() {
+        return freeListHits.get();
+    }
+    
+    /** Get the number of bucket requests which required a new allocation.
+     * 
+     * @return number of free list misses
+     */
+    public long getFreeListMisses() {
+        return freeListMisses.get();
+    }
+    
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+    
+    /** Get the directory in which segment files are stored.
+     * 
+     * @return the segment directory, or empty if this pool does not use mapped files.
+     */
+    public Optional<Path> getDirectory() {
+        return Optional.ofNullable(directory);
+    }
 }
@@ -18,12 +18,15 @@ import com.softwareplumbers.feed.impl.MessageImpl;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.time.Instant;
 import java.util.Optional;
 import java.util.UUID;
 import javax.json.Json;
 import javax.json.JsonException;
 import javax.json.JsonObject;
+import javax.json.JsonReader;
 import javax.json.stream.JsonParser;
 
 /**
@@ -33,7 +36,8 @@ import javax.json.stream.JsonParser;
 public class BufferedMessageImpl implements Message {
 
     private static class Headers {
-        final JsonObject headers;
+        private JsonObject headers;
+        private final BucketSlice userHeaders;
         final FeedPath name;
         final Instant timestamp;
         final UUID serverId;
@@ -45,6 +49,7 @@ public class BufferedMessageImpl implements Message {
         public Headers(JsonObject allHeaders) {
             this.length = allHeaders.getJsonNumber("length").longValueExact();
             this.headers = allHeaders.getJsonObject("headers");
+            this.userHeaders = null;
             try {
                 this.name = FeedPath.valueOf(allHeaders.getString("name"));
             } catch (InvalidPathSyntax e) {
@@ -56,23 +61,86 @@ public class BufferedMessageImpl implements Message {
             this.type = Message.getType(allHeaders);
             this.remoteInfo = Message.getRemoteInfo(allHeaders);
         }
+        
+        /** Decode headers from a header record.
+         * 
+         * User headers are not parsed until they are requested.
+         * 
+         * @param record Slice of a bucket containing a header record
+         * @throws IOException if the bucket has been reused
+         */
+        public Headers(BucketSlice record) throws IOException {
+            ByteBuffer view = record.view();
+            this.length = HeaderRecord.getLength(view);
+            this.timestamp = HeaderRecord.getTimestamp(view);
+            this.serverId = HeaderRecord.getServerId(view).orElseThrow(()->runtime(new StreamingException("serverId is mandatory")));
+            this.remoteInfo = HeaderRecord.getRemoteInfo(view);
+            ByteBuffer strings = HeaderRecord.getStrings(view);
+            this.type = MessageType.valueOf(HeaderRecord.readString(strings));
+            String path = HeaderRecord.readString(strings);
+            try {
+                this.name = path == null ? null : FeedPath.valueOf(path);
+            } catch (InvalidPathSyntax e) {
+                throw runtime(e);
+            }
+            this.sender = HeaderRecord.readString(strings);
+            int userOffset = strings.position() - view.position();
+            this.userHeaders = record.slice(userOffset, record.length() - userOffset);
+        }
+        
+        JsonObject getHeaders() {
+            if (headers == null && userHeaders != null) {
+                if (userHeaders.length() == 0) {
+                    headers = JsonObject.EMPTY_JSON_OBJECT;
+                } else {
+                    try (JsonReader reader = Json.createReader(userHeaders.get())) {
+                        headers = reader.readObject();
+                    } catch (IOException e) {
+                        throw runtime(e);
+                    }
+                }
+            }
+            return headers;
+        }
     }
     
     private final InputStreamSupplier data;
     private final InputStreamSupplier headers;  
+    private final boolean isRecord;
     private Headers headerCache = null;
     
     public BufferedMessageImpl(InputStreamSupplier headers, InputStreamSupplier data) throws FeedExceptions.StreamingException {
         try {
             this.headers = InputStreamSupplier.copy(headers);
             this.data = InputStreamSupplier.copy(data);
+            this.isRecord = false;
         } catch (IOException e) {
             throw new StreamingException(e);
         }
     }
     
+    /** Create a message which reads directly from bucket storage.
+     * 
+     * No copy of the data is made; the message remains readable until the bucket
+     * it was read from is reused.
+     * 
+     * @param headers Slice of a bucket containing the message headers, in the format described in HeaderRecord
+     * @param data Slice of a bucket containing the message data, or a blob referenced by the bucket
+     */
+    BufferedMessageImpl(BucketSlice headers, InputStreamSupplier data) {
+        this.headers = headers;
+        this.data = data;
+        this.isRecord = true;
+    }
+    
     private Headers getAllHeaders() {
-        if (headerCache == null) {
+        if (headerCache == null && isRecord) {
+            try {
+                headerCache = new Headers((BucketSlice)headers);
+            } catch (IOException e) {
+                throw FeedExceptions.runtime(e);
+            }
+        } else if (headerCache == null) {
             try (JsonParser parser = Json.createParser(headers.get())) {
                 parser.next();
                 JsonObject json = parser.getObject();
@@ -87,7 +155,7 @@ public class BufferedMessageImpl implements Message {
      
     @Override
     public JsonObject getHeaders() {
-        return getAllHeaders().headers;
+        return getAllHeaders().getHeaders();
     }
     
     @Override
@@ -118,8 +186,15 @@ public class BufferedMessageImpl implements Message {
         return new MessageImpl(getType(), getId(), getName(), getSender(), getTimestamp(), getServerId(), getRemoteInfo(), getHeaders(),length, data);
     }    
 
+    /** Get the headers as a plain message, for conversion to JSON.
+     */
+    private MessageImpl toMessageImpl() {
+        return new MessageImpl(getType(), getId(), getName(), getSender(), getTimestamp(), getServerId(), getRemoteInfo(), getHeaders(), getLength(), data);
+    }
+
     @Override
     public InputStream getHeaderStream() {
+        if (isRecord) return toMessageImpl().getHeaderStream();
         try {
             return headers.get();
         } catch (IOException e) {
@@ -188,10 +263,18 @@ public class BufferedMessageImpl implements Message {
     }
 
     
+    private static void write(InputStreamSupplier supplier, OutputStream out) throws IOException {
+        if (supplier instanceof BucketSlice) {
+            ((BucketSlice)supplier).writeTo(out);
+        } else {
+            OutputStreamConsumer.of(supplier).consume(out);
+        }
+    }
+    
     @Override
     public <T> T writeData(OutputStream out, ErrorHandler<T> errorCallback) throws FeedExceptions.StreamingException {
         try {
-            OutputStreamConsumer.of(data).consume(out);
+            write(data, out);
         } catch (IOException e) {            
             return errorCallback.recover(e, null);
         }
@@ -201,13 +284,60 @@ public class BufferedMessageImpl implements Message {
      @Override
     public void writeHeaders(OutputStream out) throws FeedExceptions.StreamingException
     {   
+        if (isRecord) {
+            toMessageImpl().writeHeaders(out);
+            return;
+        }
         try {
-            OutputStreamConsumer.of(headers).consume(out);
+            write(headers, out);
         } catch(IOException e) {
             throw new StreamingException(e);
         }
     }   
     
+    /** Write message data to a channel.
+     * 
+     * Where the message is held in a bucket, data is written directly from bucket storage.
+     * 
+     * @param channel Channel to which data is written
+     * @return number of bytes written
+     * @throws StreamingException if data could not be written
+     */
+    public long transferData(WritableByteChannel channel) throws StreamingException {
+        try {
+            if (data instanceof BucketSlice) {
+                return ((BucketSlice)data).transferTo(channel);
+            } else {
+                try (InputStream is = data.get()) {
+                    long count = 0;
+                    ByteBuffer block = ByteBuffer.allocate(8192);
+                    int read;
+                    while ((read = is.read(block.array())) >= 0) {
+                        block.position(0).limit(read);
+                        while (block.hasRemaining()) count += channel.write(block);
+                        block.clear();
+                    }
+                    return count;
+                }
+            }
+        } catch (IOException e) {
+            throw new StreamingException(e);
+        }
+    }
+    
+    /** Get message data as a read-only byte buffer, if the message is held in a bucket.
+     * 
+     * @return A buffer sharing storage with the bucket, or empty if the data is not held in a bucket
+     * @throws StreamingException if the bucket holding the data has been reused
+     */
+    public Optional<ByteBuffer> getDataBuffer() throws StreamingException {
+        try {
+            return data instanceof BucketSlice ? Optional.of(((BucketSlice)data).asByteBuffer()) : Optional.empty();
+        } catch (IOException e) {
+            throw new StreamingException(e);
+        }
+    }
+    
     @Override
     public boolean equals(Object other) {
         return other instanceof Message && Message.equals(this, (Message)other);
@@ -219,6 +349,13 @@ public class BufferedMessageImpl implements Message {
     
     @Override
     public String toString() {
+        if (isRecord) {
+            try {
+                return "BufferedMessage[" + getType() + ", " + getName() + ", " + getTimestamp() + ", ...]";
+            } catch (RuntimeException e) {
+                return "BufferedMessage[<unreadable>]";
+            }
+        }
         byte[] truncatedHeaders = new byte[64];
         try (InputStream is = headers.get()) {
             is.read(truncatedHeaders);
@@ -0,0 +1,142 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.feed.impl.buffer;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/** Policy deciding which buckets a buffer pool de-allocates.
+ *
+ * BufferPool.deallocateBuckets repeatedly asks the policy for a bucket to evict
+ * until the policy returns empty. Candidates are offered oldest allocation first,
+ * and never include the bucket a buffer is currently writing to. Evicting a bucket
+ * also evicts any older buckets in the same buffer, so that each buffer always
+ * holds a contiguous range of messages.
+ *
+ * A single scan of the pool is shared by the whole of one deallocateBuckets run;
+ * each request for a victim is offered only the candidates which the previous
+ * request did not consume. Eviction only makes the pool and its buffers smaller, so
+ * a candidate passed over once will not qualify later in the same run. A policy
+ * which selects the first candidate qualifying therefore costs one scan of the pool
+ * however many buckets it evicts. A policy which reads every candidate, such as LRU,
+ * causes a new scan for each victim.
+ *
+ * @author jonathan
+ */
+@FunctionalInterface
+public interface EvictionPolicy {
+
+    /** Select a bucket to evict.
+     *
+     * @param candidates Buckets which may be evicted, oldest allocation first
+     * @param pool The pool from which buckets are to be evicted
+     * @return A bucket to evict, or empty if no more buckets should be evicted.
+     */
+    Optional<BucketAllocation> selectVictim(Stream<BucketAllocation> candidates, BufferPool pool);
+
+    /** Combine this policy with another.
+     *
+     * @param other Policy consulted when this policy selects nothing
+     * @return A policy which evicts anything selected by either policy
+     */
+    default EvictionPolicy or(EvictionPolicy other) {
+        EvictionPolicy first = this;
+        return new EvictionPolicy() {
+            @Override
+            public Optional<BucketAllocation> selectVictim(Stream<BucketAllocation> candidates, BufferPool pool) {
+                Optional<BucketAllocation> victim = first.selectVictim(candidates, pool);
+                return victim.isPresent() ? victim : other.selectVictim(pool.getEvictionCandidates(), pool);
+            }
+
+            @Override
+            public Iterator<BucketAllocation> selectVictims(BufferPool pool) {
+                // once the first policy selects nothing it will select nothing more in this run
+                Iterator<BucketAllocation> firstVictims = first.selectVictims(pool);
+                Iterator<BucketAllocation> otherVictims = other.selectVictims(pool);
+                return new Iterator<BucketAllocation>() {
+                    @Override
+                    public boolean hasNext() {
+                        return firstVictims.hasNext() || otherVictims.hasNext();
+                    }
+
+                    @Override
+                    public BucketAllocation next() {
+                        return firstVictims.hasNext() ? firstVictims.next() : otherVictims.next();
+                    }
+                };
+            }
+        };
+    }
+
+    /** Select the buckets to evict in one run of BufferPool.deallocateBuckets.
+     *
+     * Each victim is selected when the iterator is advanced, after the previous victim
+     * has been evicted. The default implementation calls selectVictim with the rest of
+     * a single scan of the pool, starting a new scan only when a victim is selected by
+     * reading every remaining candidate.
+     *
+     * @param pool The pool from which buckets are to be evicted
+     * @return Buckets to evict, in the order they should be evicted
+     */
+    default Iterator<BucketAllocation> selectVictims(BufferPool pool) {
+        return new Iterator<BucketAllocation>() {
+            private Iterator<BucketAllocation> scan = pool.getEvictionCandidates().iterator();
+            private Optional<BucketAllocation> victim = null;
+
+            @Override
+            public boolean hasNext() {
+                if (victim == null) {
+                    victim = selectVictim(StreamSupport.stream(Spliterators.spliteratorUnknownSize(scan, Spliterator.ORDERED | Spliterator.NONNULL), false), pool);
+                    if (victim.isPresent() && !scan.hasNext()) scan = pool.getEvictionCandidates().iterator();
+                }
+                return victim.isPresent();
+            }
+
+            @Override
+            public BucketAllocation next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                BucketAllocation result = victim.get();
+                victim = null;
+                return result;
+            }
+        };
+    }
+
+    /** Global FIFO; evict the oldest allocated bucket while the pool is larger than its maximum size. */
+    public static final EvictionPolicy FIFO = (candidates, pool) ->
+        pool.getSize() > pool.getMaxSize() ? candidates.findFirst() : Optional.empty();
+
+    /** Least recently read; evict the bucket which has gone longest without being read while the pool is larger than its maximum size. */
+    public static final EvictionPolicy LRU = (candidates, pool) ->
+        pool.getSize() > pool.getMaxSize() ? candidates.min(Comparator.comparingLong(BucketAllocation::getLastRead)) : Optional.empty();
+
+    /** Age based eviction; evict buckets which contain only messages older than the given age.
+     *
+     * This policy evicts regardless of pool size, and is usually combined with a size
+     * based policy, e.g. EvictionPolicy.ttl(clock, age).or(EvictionPolicy.FIFO).
+     *
+     * @param clock Clock used to determine the current time
+     * @param maxAge Maximum age of a message
+     * @return An age based eviction policy
+     */
+    public static EvictionPolicy ttl(Clock clock, Duration maxAge) {
+        return (candidates, pool) -> {
+            Instant expiry = clock.instant().minus(maxAge);
+            return candidates
+                .filter(candidate->candidate.getLastTimestamp().map(last->last.isBefore(expiry)).orElse(false))
+                .findFirst();
+        };
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.feed.impl.buffer;
+
+import com.softwareplumbers.feed.FeedExceptions.StreamingException;
+import com.softwareplumbers.feed.Message;
+import com.softwareplumbers.feed.Message.RemoteInfo;
+import com.softwareplumbers.feed.MessageType;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.UUID;
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonWriter;
+
+/** Binary layout of the headers of a message stored in a bucket.
+ *
+ * A header record starts with a fixed size block holding a byte of flags (which
+ * optional fields are present), the timestamp in nanoseconds since the epoch, the
+ * server id as two longs, the length of the message data, and the remote server id
+ * and remote timestamp. This is followed by the type, name and sender, each written
+ * as an int length (-1 for null) and UTF-8 bytes. Any remaining bytes in the record
+ * are the user headers, held as JSON; an empty object is written as no bytes at all.
+ *
+ * Fixed fields can therefore be read from a record with a single absolute get,
+ * and the user headers need only be parsed if they are actually requested.
+ *
+ * @author jonathan
+ */
+class HeaderRecord {
+
+    static final int FLAGS = 0;
+    static final int TIMESTAMP = 1;
+    static final int SERVER_ID = 9;
+    static final int LENGTH = 25;
+    static final int REMOTE_SERVER_ID = 33;
+    static final int REMOTE_TIMESTAMP = 49;
+    static final int FIXED_SIZE = 57;
+
+    static final int HAS_TIMESTAMP = 1;
+    static final int HAS_SERVER_ID = 2;
+    static final int HAS_REMOTE_INFO = 4;
+
+    private HeaderRecord() {
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /** Write the headers of a message as a header record.
+     *
+     * As with Message.writeHeaders, the output stream may be closed once the record is written.
+     *
+     * @param message Message to write
+     * @param out Stream to write to
+     * @throws StreamingException if the record could not be written
+     */
+    static void write(Message message, OutputStream out) throws StreamingException {
+        Instant timestamp = message.getTimestamp();
+        Optional<UUID> serverId = message.getServerId();
+        Optional<RemoteInfo> remoteInfo = message.getRemoteInfo();
+        MessageType type = message.getType();
+        JsonObject headers = message.getHeaders();
+        try {
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeByte(
+                (timestamp == null ? 0 : HAS_TIMESTAMP)
+                | (serverId.isPresent() ? HAS_SERVER_ID : 0)
+                | (remoteInfo.isPresent() ? HAS_REMOTE_INFO : 0)
+            );
+            data.writeLong(timestamp == null ? 0 : TimeIndex.toNanos(timestamp));
+            data.writeLong(serverId.map(UUID::getMostSignificantBits).orElse(0L));
+            data.writeLong(serverId.map(UUID::getLeastSignificantBits).orElse(0L));
+            data.writeLong(message.getLength());
+            data.writeLong(remoteInfo.map(info->info.serverId.getMostSignificantBits()).orElse(0L));
+            data.writeLong(remoteInfo.map(info->info.serverId.getLeastSignificantBits()).orElse(0L));
+            data.writeLong(remoteInfo.map(info->TimeIndex.toNanos(info.timestamp)).orElse(0L));
+            writeString(data, type == MessageType.NONE ? null : type.toString());
+            writeString(data, message.getName() == null ? null : message.getName().toString());
+            writeString(data, message.getSender());
+            data.flush();
+            if (headers != null && !headers.isEmpty()) {
+                try (JsonWriter writer = Json.createWriter(out)) {
+                    writer.write(headers);
+                }
+            }
+        } catch (IOException e) {
+            throw new StreamingException(e);
+        } catch (JsonException e) {
+            throw new StreamingException(e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e));
+        }
+    }
+
+    /** Set the timestamp of a header record which has already been written.
+     *
+     * @param record Bytes holding the record
+     * @param offset Offset of the record in the bytes
+     * @param timestamp New timestamp
+     */
+    static void setTimestamp(byte[] record, int offset, Instant timestamp) {
+        ByteBuffer view = ByteBuffer.wrap(record);
+        view.put(offset + FLAGS, (byte)(view.get(offset + FLAGS) | HAS_TIMESTAMP));
+        view.putLong(offset + TIMESTAMP, TimeIndex.toNanos(timestamp));
+    }
+
+    static int getFlags(ByteBuffer record) {
+        return record.get(record.position() + FLAGS);
+    }
+
+    static Instant getTimestamp(ByteBuffer record) {
+        return (getFlags(record) & HAS_TIMESTAMP) == 0 ? null : TimeIndex.toInstant(record.getLong(record.position() + TIMESTAMP));
+    }
+
+    static Optional<UUID> getServerId(ByteBuffer record) {
+        int base = record.position();
+        return (getFlags(record) & HAS_SERVER_ID) == 0
+            ? Optional.empty()
+            : Optional.of(new UUID(record.getLong(base + SERVER_ID), record.getLong(base + SERVER_ID + 8)));
+    }
+
+    static long getLength(ByteBuffer record) {
+        return record.getLong(record.position() + LENGTH);
+    }
+
+    static Optional<RemoteInfo> getRemoteInfo(ByteBuffer record) {
+        int base = record.position();
+        return (getFlags(record) & HAS_REMOTE_INFO) == 0
+            ? Optional.empty()
+            : Optional.of(new RemoteInfo(
+                new UUID(record.getLong(base + REMOTE_SERVER_ID), record.getLong(base + REMOTE_SERVER_ID + 8)),
+                TimeIndex.toInstant(record.getLong(base + REMOTE_TIMESTAMP))
+            ));
+    }
+
+    /** Get a view of the variable length fields of a record.
+     *
+     * @param record Record to read
+     * @return A view positioned at the first string field
+     */
+    static ByteBuffer getStrings(ByteBuffer record) {
+        ByteBuffer view = record.duplicate();
+        view.position(record.position() + FIXED_SIZE);
+        return view;
+    }
+
+    /** Read a string field, advancing the view past it.
+     *
+     * @param view View positioned at a string field
+     * @return The string, or null
+     */
+    static String readString(ByteBuffer view) {
+        int length = view.getInt();
+        if (length < 0) return null;
+        if (view.hasArray()) {
+            String result = new String(view.array(), view.arrayOffset() + view.position(), length, StandardCharsets.UTF_8);
+            view.position(view.position() + length);
+            return result;
+        } else {
+            byte[] bytes = new byte[length];
+            view.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
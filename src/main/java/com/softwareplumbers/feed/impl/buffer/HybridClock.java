@@ -0,0 +1,37 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.feed.impl.buffer;
+
+import java.time.Instant;
+
+/** Hybrid logical clock.
+ *
+ * A message clock which also advances past the timestamps of messages received from
+ * other nodes in the cluster. A timestamp taken after a remote timestamp has been
+ * merged is always later than the remote timestamp, whatever the skew between the
+ * two nodes' system clocks, so timestamps respect the order in which messages were
+ * replicated around the cluster and can be compared directly between nodes.
+ *
+ * The physical part of the clock is the system time, as for MessageClock; the logical
+ * part is the nanoseconds by which the clock runs ahead of the system time when it
+ * has been pushed forward by a remote timestamp or by demand.
+ *
+ * For timestamps to be comparable across a cluster, every node must use a hybrid clock.
+ *
+ * @author jonathan
+ */
+public class HybridClock extends MessageClock {
+
+    /** Merge a timestamp received from another node.
+     *
+     * After this call, every value returned by the clock is later than the given timestamp.
+     *
+     * @param remote Timestamp generated by the clock of a remote node
+     */
+    public void merge(Instant remote) {
+        advance(remote);
+    }
+}
@@ -0,0 +1,454 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.feed.impl.buffer;
+
+import com.softwareplumbers.feed.FeedExceptions.StorageException;
+import static com.softwareplumbers.feed.FeedExceptions.runtime;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+/** Write-ahead journal of the messages added to the in-memory buffers of a pool.
+ *
+ * The journal is a sequence of segment files in a directory, named with an increasing
+ * sequence number. Each segment starts with a magic number and version, followed by
+ * entries. An entry is the record buffer of a single append: an int length and a CRC32
+ * checksum of the content, then the buffer name (an int length and UTF-8 bytes), the
+ * number of records, and the records themselves in the format described in Bucket,
+ * with the data of large messages written inline. An entry which is truncated or fails
+ * its checksum marks the end of the segment.
+ *
+ * How often the journal is forced to disk is set by its Sync policy. Entries are written
+ * to the file as messages are added in all cases, so they survive a crash of the process;
+ * the policy decides what may be lost if the operating system itself fails.
+ *
+ * Entries are written holding the journal's lock, but the journal is forced to disk
+ * outside it, so appends continue while a force is in progress. A force covers every
+ * entry written before it started; with Sync.MESSAGE, an append which finds a force
+ * already running waits for it and, if its entry is not covered, for the next, so
+ * concurrent appends share a single force.
+ *
+ * On startup, entries in existing segments are read (the segments are mapped into memory,
+ * not copied) and replayed into buffers of the same name as they are created. Replayed
+ * messages are not journaled again; instead, once every buffer has been replayed, the old
+ * segments are treated like any other closed segment. While running, a closed segment is
+ * deleted once it holds no message newer than the oldest message retained by the pool's
+ * buffers. A message therefore stays in the journal for as long as it is retained, even
+ * if it was restored from a snapshot rather than replayed.
+ *
+ * @author jonathan
+ */
+public class Journal {
+
+    private static final XLogger LOG = XLoggerFactory.getXLogger(Journal.class);
+
+    /** When the journal is forced to disk. */
+    public enum Sync {
+        /** Force the journal to disk before each append completes */
+        MESSAGE,
+        /** Force the journal to disk periodically, in the background */
+        GROUP,
+        /** Leave the operating system to write the journal to disk */
+        OS
+    }
+
+    static final int MAGIC = 0x464A524E;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    static final long SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final String SUFFIX = ".journal";
+
+    /** Buffer in which an entry is assembled, exposing its content without a copy */
+    private static class EntryBuffer extends ByteArrayOutputStream {
+        EntryBuffer() {
+            super(4096);
+        }
+
+        byte[] getBytes() {
+            return buf;
+        }
+    }
+
+    private final Path directory;
+    private final Sync sync;
+    private final ScheduledExecutorService syncExecutor;
+    private final EntryBuffer entry = new EntryBuffer();
+    private final DataOutputStream entryData = new DataOutputStream(entry);
+    private final byte[] chunk = new byte[8192];
+    /** Timestamp in epoch nanos of the last message in each closed segment */
+    private final TreeMap<Path, Long> closed = new TreeMap<>((a,b)->Long.compare(getSequence(a), getSequence(b)));
+    private final Map<String, List<ByteBuffer>> replay = new HashMap<>();
+    /** Timestamp in epoch nanos of the last message in each segment read for replay */
+    private final Map<Path, Long> replayed = new LinkedHashMap<>();
+    private long sequence = 0;
+    private Path file;
+    private FileChannel channel;
+    private long lastTimestamp = Long.MIN_VALUE;
+    /** Number of entries written */
+    private long appended = 0;
+    /** Guards forced and forcing */
+    private final Object forceLock = new Object();
+    /** Number of entries known to be on disk */
+    private long forced = 0;
+    /** True while a thread is forcing the journal to disk */
+    private boolean forcing = false;
+
+    private static long getSequence(Path file) {
+        String name = file.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Open a journal, reading any existing segments for replay.
+     *
+     * @param directory Directory holding the journal segments
+     * @param sync When the journal is forced to disk
+     * @param groupCommitMillis Interval between forces, for Sync.GROUP
+     * @throws IOException if the journal could not be opened
+     */
+    Journal(Path directory, Sync sync, long groupCommitMillis) throws IOException {
+        LOG.entry(directory, sync, groupCommitMillis);
+        this.directory = directory;
+        this.sync = sync;
+        Files.createDirectories(directory);
+        List<Path> existing = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path segment : stream) if (getSequence(segment) >= 0) existing.add(segment);
+        }
+        existing.sort((a,b)->Long.compare(getSequence(a), getSequence(b)));
+        for (Path segment : existing) {
+            sequence = getSequence(segment) + 1;
+            replayed.put(segment, read(segment));
+        }
+        openSegment();
+        if (sync == Sync.GROUP) {
+            syncExecutor = Executors.newSingleThreadScheduledExecutor(runnable->{
+                Thread thread = new Thread(runnable, "journal-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncExecutor.scheduleWithFixedDelay(this::force, groupCommitMillis, groupCommitMillis, TimeUnit.MILLISECONDS);
+        } else {
+            syncExecutor = null;
+        }
+        if (replay.isEmpty()) deleteReplayed();
+        LOG.exit();
+    }
+
+    /** Read the entries of a segment for replay.
+     *
+     * @param segment Segment file
+     * @return Timestamp in epoch nanos of the last message in the segment
+     * @throws IOException if the segment could not be read
+     */
+    private long read(Path segment) throws IOException {
+        LOG.entry(segment);
+        ByteBuffer content;
+        try (FileChannel input = FileChannel.open(segment, StandardOpenOption.READ)) {
+            if (input.size() > Integer.MAX_VALUE) throw new IOException("Journal segment too large: " + segment);
+            content = input.map(FileChannel.MapMode.READ_ONLY, 0, input.size());
+        }
+        if (content.remaining() < HEADER_SIZE || content.getInt() != MAGIC || content.getInt() != VERSION) {
+            LOG.warn("Ignoring journal segment {}: not a journal segment", segment);
+            return LOG.exit(Long.MIN_VALUE);
+        }
+        long last = Long.MIN_VALUE;
+        int entries = 0;
+        CRC32 crc = new CRC32();
+        while (content.remaining() >= 8) {
+            int length = content.getInt();
+            int checksum = content.getInt();
+            if (length <= 0 || length > content.remaining()) break;
+            ByteBuffer payload = content.slice();
+            payload.limit(length);
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int)crc.getValue() != checksum) break;
+            content.position(content.position() + length);
+            String name = HeaderRecord.readString(payload);
+            int count = payload.getInt();
+            ByteBuffer records = payload.slice();
+            last = Math.max(last, getLastTimestamp(records, count));
+            replay.computeIfAbsent(name, key->new ArrayList<>()).add(records);
+            entries++;
+        }
+        if (content.hasRemaining()) LOG.warn("Journal segment {} is truncated after {} entries", segment, entries);
+        return LOG.exit(last);
+    }
+
+    /** Get the latest timestamp of a sequence of records.
+     *
+     * @param records Records in the format described in Bucket
+     * @param count Number of records
+     * @return Timestamp in epoch nanos
+     */
+    private static long getLastTimestamp(ByteBuffer records, int count) {
+        long last = Long.MIN_VALUE;
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            int headerLength = records.getInt(position);
+            int header = position + Bucket.FRAME_SIZE + records.getInt(position + 4);
+            last = Math.max(last, records.getLong(header + HeaderRecord.TIMESTAMP));
+            position = header + headerLength;
+        }
+        return last;
+    }
+
+    private void openSegment() throws IOException {
+        file = directory.resolve(sequence++ + SUFFIX);
+        channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        while (header.hasRemaining()) channel.write(header);
+        lastTimestamp = Long.MIN_VALUE;
+    }
+
+    private void closeSegment() throws IOException {
+        channel.force(false);
+        channel.close();
+        closed.put(file, lastTimestamp);
+    }
+
+    private void deleteReplayed() {
+        for (Path segment : replayed.keySet()) delete(segment);
+        replayed.clear();
+    }
+
+    private static void delete(Path segment) {
+        try {
+            Files.deleteIfExists(segment);
+        } catch (IOException e) {
+            LOG.warn("Could not delete journal segment {}: {}", segment, e.getMessage());
+        }
+    }
+
+    /** Take the records journaled for a buffer before the journal was opened.
+     *
+     * @param name Buffer name
+     * @return Records of each append to the buffer, in order; each is suitable for Bucket.recover
+     */
+    synchronized List<ByteBuffer> takeReplay(String name) {
+        List<ByteBuffer> records = replay.remove(name);
+        return records == null ? new ArrayList<>() : records;
+    }
+
+    /** Called once a buffer which may have taken records is retained by the pool.
+     *
+     * Once records have been taken for every buffer in the old segments, the old
+     * segments are closed, so that trim deletes them when the pool no longer retains
+     * any of their messages.
+     */
+    synchronized void replayComplete() {
+        if (!replay.isEmpty()) return;
+        closed.putAll(replayed);
+        replayed.clear();
+    }
+
+    synchronized List<String> getReplayNames() {
+        return new ArrayList<>(replay.keySet());
+    }
+
+    /** Append the records of a single append to the journal.
+     *
+     * The entry is written to the file, but not forced to disk; call awaitSync before
+     * reporting the append as complete.
+     *
+     * @param name Name of buffer to which the records are being added
+     * @param records Serialized messages
+     * @param timestamp Timestamp of the last message, in epoch nanos
+     * @return The number of entries written, including this one
+     */
+    long append(String name, RecordBuffer records, long timestamp) {
+        try {
+            return write(name, records, timestamp);
+        } catch (IOException e) {
+            throw LOG.throwing(runtime(new StorageException(e)));
+        }
+    }
+
+    /** Wait, if the sync policy requires it, until an appended entry is on disk.
+     *
+     * With Sync.MESSAGE, waits until the journal has been forced to disk after the
+     * entry was written. Otherwise returns immediately.
+     *
+     * @param entry Number returned by append
+     */
+    void awaitSync(long entry) {
+        if (sync != Sync.MESSAGE) return;
+        try {
+            sync(entry);
+        } catch (IOException e) {
+            throw LOG.throwing(runtime(new StorageException(e)));
+        }
+    }
+
+    private synchronized long write(String name, RecordBuffer records, long timestamp) throws IOException {
+        entry.reset();
+        HeaderRecord.writeString(entryData, name);
+        entryData.writeInt(records.size());
+        byte[] bytes = records.getBytes();
+        for (int i = 0; i < records.size(); i++) {
+            BlobStore.Blob blob = records.getBlob(i);
+            int offset = records.getOffset(i);
+            int dataLength = records.getDataLength(i);
+            int headerLength = records.getHeaderLength(i);
+            entryData.writeInt(headerLength);
+            entryData.writeInt(blob == null ? dataLength : blob.length());
+            if (blob == null) {
+                entryData.write(bytes, offset, dataLength);
+            } else {
+                try (InputStream data = blob.get()) {
+                    int read;
+                    while ((read = data.read(chunk)) > 0) entryData.write(chunk, 0, read);
+                }
+            }
+            entryData.write(bytes, offset + dataLength, headerLength);
+        }
+        entryData.flush();
+        CRC32 crc = new CRC32();
+        crc.update(entry.getBytes(), 0, entry.size());
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.putInt(entry.size()).putInt((int)crc.getValue()).flip();
+        ByteBuffer content = ByteBuffer.wrap(entry.getBytes(), 0, entry.size());
+        if (channel.position() + header.remaining() + content.remaining() > SEGMENT_SIZE && lastTimestamp != Long.MIN_VALUE) {
+            closeSegment();
+            openSegment();
+        }
+        while (header.hasRemaining()) channel.write(header);
+        while (content.hasRemaining()) channel.write(content);
+        lastTimestamp = Math.max(lastTimestamp, timestamp);
+        return ++appended;
+    }
+
+    /** Wait until a number of entries are on disk, forcing the journal if no other thread is.
+     *
+     * @param count Number of entries which must be on disk
+     * @throws IOException if the journal could not be forced
+     */
+    private void sync(long count) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                synchronized(forceLock) {
+                    while (forcing && forced < count) {
+                        try {
+                            forceLock.wait();
+                        } catch (InterruptedException e) {
+                            // the entry has been written, so defer the interrupt until it is on disk
+                            interrupted = true;
+                        }
+                    }
+                    if (forced >= count) return;
+                    forcing = true;
+                }
+                FileChannel current;
+                long target;
+                synchronized(this) {
+                    current = channel;
+                    target = appended;
+                }
+                boolean done = false;
+                try {
+                    force(current);
+                    done = true;
+                } finally {
+                    synchronized(forceLock) {
+                        if (done) forced = Math.max(forced, target);
+                        forcing = false;
+                        forceLock.notifyAll();
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void force(FileChannel channel) throws IOException {
+        try {
+            channel.force(false);
+        } catch (ClosedByInterruptException e) {
+            throw e;
+        } catch (ClosedChannelException e) {
+            // closed by closeSegment or close, which force the segment first
+        }
+    }
+
+    /** Force any journaled entries to disk.
+     */
+    void force() {
+        long count;
+        synchronized(this) {
+            count = appended;
+        }
+        try {
+            sync(count);
+        } catch (IOException e) {
+            LOG.warn("Failed to force journal {}: {}", file, e.getMessage());
+        }
+    }
+
+    /** Delete closed segments which hold only messages older than the given time.
+     *
+     * @param oldest Timestamp of the oldest message retained by any buffer
+     */
+    synchronized void trim(Instant oldest) {
+        long limit = TimeIndex.toNanos(oldest);
+        while (!closed.isEmpty() && closed.firstEntry().getValue() < limit) {
+            delete(closed.pollFirstEntry().getKey());
+        }
+    }
+
+    /** Force the journal to disk and close it.
+     */
+    synchronized void close() {
+        LOG.entry();
+        if (syncExecutor != null) syncExecutor.shutdown();
+        try {
+            if (channel.isOpen()) {
+                channel.force(false);
+                channel.close();
+            }
+        } catch (IOException e) {
+            throw LOG.throwing(runtime(new StorageException(e)));
+        }
+        LOG.exit();
+    }
+
+    Sync getSync() {
+        return sync;
+    }
+
+    @Override
+    public String toString() {
+        return "Journal[" + directory + "]";
+    }
+}
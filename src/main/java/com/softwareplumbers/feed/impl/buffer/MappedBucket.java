@@ -0,0 +1,171 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.feed.impl.buffer;
+
+import com.softwareplumbers.feed.FeedExceptions.StorageException;
+import static com.softwareplumbers.feed.FeedExceptions.runtime;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+/** A bucket stored in a memory-mapped segment file.
+ *
+ * The segment file starts with a short header recording the start time of the
+ * bucket (its key in the owning buffer's bucket cache). The remainder of the file
+ * holds message records in the format described in Bucket. Message data is paged
+ * in and out by the operating system, so a pool of mapped buckets can be larger
+ * than available memory, and the records survive a restart of the process.
+ *
+ * @author jonathan
+ */
+class MappedBucket extends Bucket {
+
+    private static final XLogger LOG = XLoggerFactory.getXLogger(MappedBucket.class);
+
+    static final int MAGIC = 0x4642554B;
+    /** Version 2 segments hold headers as binary header records rather than JSON */
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 32;
+
+    private final SegmentDirectory directory;
+    private final Instant from;
+    private Path file;
+
+    private MappedBucket(SegmentDirectory directory, Path file, Instant from, ByteBuffer records) {
+        super(records);
+        this.directory = directory;
+        this.file = file;
+        this.from = from;
+    }
+
+    private static MappedByteBuffer map(Path file, int size, boolean create) throws IOException {
+        try (FileChannel channel = create
+            ? FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)
+            : FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)
+        ) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + size);
+        }
+    }
+
+    private static ByteBuffer records(MappedByteBuffer mapped) {
+        mapped.position(HEADER_SIZE);
+        return mapped.slice();
+    }
+
+    private static ByteBuffer create(Path file, Instant from, int size) throws IOException {
+        MappedByteBuffer mapped = map(file, size, true);
+        mapped.putInt(0, MAGIC);
+        mapped.putInt(4, VERSION);
+        mapped.putLong(8, from.getEpochSecond());
+        mapped.putInt(16, from.getNano());
+        return records(mapped);
+    }
+
+    /** Create a new segment file and map it into memory.
+     *
+     * @param directory Directory in which to create the segment file
+     * @param from Start time of the bucket
+     * @param size Size available for message records
+     * @return A new, empty, bucket
+     */
+    static MappedBucket create(SegmentDirectory directory, Instant from, int size) {
+        LOG.entry(directory, from, size);
+        Path file = directory.nextSegment();
+        try {
+            return LOG.exit(new MappedBucket(directory, file, from, create(file, from, size)));
+        } catch (IOException e) {
+            throw LOG.throwing(runtime(new StorageException(e)));
+        }
+    }
+
+    /** Map an existing segment file into memory and re-index its contents.
+     *
+     * @param directory Directory containing the segment file
+     * @param file Segment file
+     * @return The recovered bucket
+     * @throws IOException if the file cannot be read or is not a segment file
+     */
+    static MappedBucket open(SegmentDirectory directory, Path file) throws IOException {
+        LOG.entry(directory, file);
+        long length = Files.size(file);
+        if (length < HEADER_SIZE || length > Integer.MAX_VALUE) throw new IOException("Bad segment file size: " + file);
+        MappedByteBuffer mapped = map(file, (int)length - HEADER_SIZE, false);
+        if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) throw new IOException("Not a segment file: " + file);
+        Instant from = Instant.ofEpochSecond(mapped.getLong(8), mapped.getInt(16));
+        MappedBucket bucket = new MappedBucket(directory, file, from, records(mapped));
+        LOG.debug("recovered {} messages from {}", bucket.recover(), file);
+        return LOG.exit(bucket);
+    }
+
+    /** Get the start time of the bucket.
+     *
+     * @return the key under which this bucket is held in its buffer
+     */
+    Instant getFrom() {
+        return from;
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    /** Resize the bucket.
+     *
+     * The data is copied into a new segment file, and the old file deleted, so that
+     * messages already read from this bucket remain valid.
+     *
+     * @param maxSize new size
+     */
+    @Override
+    void resize(int maxSize) {
+        LOG.entry(maxSize);
+        Path old = file;
+        Path resized = directory.nextSegment();
+        try {
+            replaceStorage(create(resized, from, maxSize));
+        } catch (IOException e) {
+            throw LOG.throwing(runtime(new StorageException(e)));
+        }
+        file = resized;
+        delete(old);
+        LOG.exit();
+    }
+
+    @Override
+    void release() {
+        delete(file);
+    }
+    
+    @Override
+    boolean isRecyclable() {
+        return false;
+    }
+    
+    @Override
+    boolean isCompressible() {
+        return false;
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOG.warn("Could not delete segment file {}: {}", file, e.getMessage());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MappedBucket[" + file + "]";
+    }
+}
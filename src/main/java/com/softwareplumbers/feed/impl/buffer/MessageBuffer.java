@@ -10,19 +10,38 @@ import static com.softwareplumbers.feed.FeedExceptions.runtime;
 import com.softwareplumbers.feed.MessageIterator;
 import com.softwareplumbers.feed.Message;
 import java.io.PrintWriter;
-import java.time.Clock;
+import java.nio.ByteBuffer;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.stream.Stream;
 import org.slf4j.ext.XLogger;
 import org.slf4j.ext.XLoggerFactory;
 
-/**
+/** A time-ordered buffer of messages, stored in buckets allocated from a BufferPool.
+ *
+ * Messages may be added concurrently without locking. Each append first serializes its
+ * messages outside any lock, and only then takes a ticket, which assigns it a sequence
+ * number and a timestamp, with a compare-and-set on the most recently issued ticket. The
+ * timestamp is patched into the serialized header records at its fixed offset. Finally,
+ * appends copy their records into the current bucket and publish them strictly in ticket
+ * order, so that each bucket remains ordered by timestamp; an append waiting for its turn
+ * is parked until the append before it publishes. The most recently published ticket is
+ * a watermark; everything up to the watermark is visible to readers.
  *
  * @author jonathan
  */
@@ -30,18 +49,204 @@ public class MessageBuffer {
     
     private static final XLogger LOG = XLoggerFactory.getXLogger(BufferPool.class);
     
+    /** Position of an append in the sequence of appends to this buffer. */
+    private static class Ticket {
+        final long sequence;
+        final Instant timestamp;
+        
+        Ticket(long sequence, Instant timestamp) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+        }
+    }
+    
+    private static final Bucket[] NO_BUCKETS = new Bucket[0];
+    
     private final NavigableMap<Instant, Bucket> bucketCache = new ConcurrentSkipListMap<>();
-    private Bucket current;
+    /** Buckets containing messages with a given id, in the order the messages were added */
+    private final Map<String, Bucket[]> idLocations = new ConcurrentHashMap<>();
+    private volatile Bucket current;
+    private final AtomicLong size = new AtomicLong(0);
+    private final AtomicLong messageCount = new AtomicLong(0);
+    private final String name;
     private final BufferPool pool;
-    private final Clock clock;
+    private final MessageClock clock;
+    private final SegmentDirectory segments;
+    /** True if appends to this buffer are written to the pool's journal, if it has one */
+    private final boolean journaled;
+    /** Most recently issued ticket */
+    private final AtomicReference<Ticket> issued;
+    /** Most recently published ticket */
+    private final AtomicReference<Ticket> published;
+    /** Threads parked waiting for their turn, by ticket sequence */
+    private final Map<Long, Thread> waiting = new ConcurrentHashMap<>();
+    /** Statistics used to size new buckets; updated only by the append whose turn it is */
+    private final MessageHistogram histogram = new MessageHistogram();
     
-    MessageBuffer(BufferPool pool, MessageClock clock, int initSize) {
+    MessageBuffer(BufferPool pool, MessageClock clock, int initSize, String name) {
         this.pool = pool;
         this.clock = clock;
-        allocateNewBucket(initSize, Instant.now());
+        this.name = name;
+        this.segments = name == null ? null : pool.getSegments(name);
+        this.journaled = name != null && segments == null;
+        if (segments != null) {
+            recoverBuckets();
+        } else if (name != null) {
+            restoreBuckets();
+        }
+        // The clock may be behind the recovered messages, for example after a merge with a remote clock
+        lastTimestamp().ifPresent(clock::advance);
+        List<Message[]> replay = journaled ? takeJournal() : Collections.emptyList();
+        if (segments != null && !bucketCache.isEmpty()) {
+            current = bucketCache.lastEntry().getValue();
+        } else {
+            // Buckets restored from a snapshot are read-only, so start a new bucket after them
+            Instant from = replay.isEmpty() ? clock.instant() : replay.get(0)[0].getTimestamp();
+            if (!bucketCache.isEmpty() && !from.isAfter(bucketCache.lastKey())) from = bucketCache.lastKey().plusNanos(1);
+            allocateNewBucket(initSize, from);
+        }
+        if (!replay.isEmpty()) replayJournal(replay);
+        Ticket initial = new Ticket(0, clock.instant());
+        this.issued = new AtomicReference<>(initial);
+        this.published = new AtomicReference<>(initial);
+    }
+    
+    /** Take the messages journaled for this buffer before the pool's journal was opened.
+     * 
+     * Messages no later than the last message already in the buffer (restored from a snapshot)
+     * are skipped.
+     * 
+     * @return The messages of each journaled append
+     */
+    private List<Message[]> takeJournal() {
+        Journal journal = pool.getJournal();
+        if (journal == null) return Collections.emptyList();
+        LOG.entry(name);
+        long last = lastTimestamp().map(TimeIndex::toNanos).orElse(Long.MIN_VALUE);
+        List<Message[]> result = new ArrayList<>();
+        for (ByteBuffer entry : journal.takeReplay(name)) {
+            Bucket records = new Bucket(entry);
+            records.recover();
+            long after = last;
+            Message[] messages = records.getMessages()
+                .filter(message->TimeIndex.toNanos(message.getTimestamp()) > after)
+                .toArray(Message[]::new);
+            if (messages.length > 0) {
+                result.add(messages);
+                last = TimeIndex.toNanos(messages[messages.length - 1].getTimestamp());
+            }
+        }
+        return LOG.exit(result);
+    }
+    
+    /** Add journaled messages to this buffer, keeping their timestamps.
+     * 
+     * The messages are not journaled again, since the journal keeps the segments they
+     * were read from until they are no longer retained. The clock is advanced past the
+     * last replayed message, so that new messages follow it.
+     * 
+     * @param replay The messages of each journaled append
+     */
+    private void replayJournal(List<Message[]> replay) {
+        LOG.entry(name, replay.size());
+        BlobStore blobStore = pool.getBlobStore();
+        for (Message[] messages : replay) {
+            RecordBuffer records = RecordBuffer.get();
+            try {
+                for (Message message : messages) records.add(message, blobStore);
+                write(records, messages);
+                clock.advance(messages[messages.length - 1].getTimestamp());
+            } catch (StreamingException e) {
+                throw LOG.throwing(runtime(e));
+            } finally {
+                records.clear();
+            }
+        }
+        LOG.exit();
+    }
+    
+    private void recoverBuckets() {
+        LOG.entry(segments);
+        for (MappedBucket bucket : segments.open().values()) {
+            if (bucket.isEmpty()) {
+                bucket.release();
+            } else {
+                pool.registerBucket(bucket, this);
+                bucketCache.put(bucket.getFrom(), bucket);
+                messageCount.addAndGet(bucket.getMessageCount());
+                bucket.getIds().forEach(id->addLocation(id, bucket));
+            }
+        }
+        LOG.exit();
     }
     
+    private void restoreBuckets() {
+        LOG.entry(name);
+        pool.takeSnapshot(name).forEach((from, bucket)->{
+            pool.registerBucket(bucket, this);
+            bucketCache.put(from, bucket);
+            messageCount.addAndGet(bucket.getMessageCount());
+            bucket.getIds().forEach(id->addLocation(id, bucket));
+        });
+        LOG.exit();
+    }
+    
+    /** Get the buckets currently allocated to this buffer.
+     * 
+     * @return Buckets keyed by start time
+     */
+    NavigableMap<Instant, Bucket> getBuckets() {
+        return Collections.unmodifiableNavigableMap(bucketCache);
+    }
+    
+    SegmentDirectory getSegments() {
+        return segments;
+    }
+    
+    /** Get the name of this buffer.
+     * 
+     * @return the buffer name, or empty if the buffer was created without one.
+     */
+    public Optional<String> getName() {
+        return Optional.ofNullable(name);
+    }
+    
+    /** Get the total size of buckets allocated to this buffer.
+     * 
+     * @return size in bytes
+     */
+    public long getSize() {
+        return size.get();
+    }
+    
+    void addSize(long delta) {
+        size.addAndGet(delta);
+    }
+    
+    /** Get the number of messages held in this buffer.
+     * 
+     * @return number of messages
+     */
+    public long getMessageCount() {
+        return messageCount.get();
+    }
+    
+    boolean isCurrent(Bucket bucket) {
+        return bucket == current;
+    }
+    
+    /** Calculate the size of a new bucket.
+     * 
+     * If the pool has a bucket sizing rule, it is applied to the statistics of this
+     * buffer. Otherwise the new bucket is the same size as the current bucket unless
+     * the records are more than half that size.
+     * 
+     * @param overflow Size of the records which did not fit in the current bucket
+     * @return size of new bucket
+     */
     protected int calcNewSize(int overflow) {
+        BucketSizing sizing = pool.getBucketSizing();
+        if (sizing != null) return sizing.calcSize(histogram, overflow);
         return overflow > current.size() / 2 
                 ? current.size() + overflow * 2
                 : current.size();
@@ -51,15 +256,60 @@ public class MessageBuffer {
         if (!bucketCache.isEmpty() && bucketCache.lastEntry().getValue().isEmpty()) {
             pool.resizeBucket(current, size);
         } else {
-            current = pool.getBucket(size, this);
+            Bucket sealed = current;
+            current = pool.getBucket(size, from, this);
             bucketCache.put(from, current);
+            if (sealed != null) pool.sealBucket(sealed);
         }
     }
     
-    protected Message handleOverflow(Message message, int size) throws StreamingException {
-        LOG.entry(message);
-        allocateNewBucket(calcNewSize(size), message.getTimestamp()); 
-        return LOG.exit(current.addMessage(message, this::handleOverflow));
+    /** Read messages from a bucket, guarding against the bucket being recycled.
+     * 
+     * A bucket may be released and reused by another buffer while a reader is
+     * part way through it. Messages are only returned while the bucket remains
+     * in the generation it was in when reading started.
+     * 
+     * @param bucket Bucket to read
+     * @param query Function which gets messages from the bucket
+     * @return Stream of messages belonging to this buffer
+     */
+    private Stream<Message> read(Bucket bucket, Function<Bucket, Stream<Message>> query) {
+        int generation = bucket.getGeneration();
+        if (bucket.getOwner() != this) return Stream.empty();
+        bucket.touch();
+        return query.apply(bucket).filter(message->bucket.getGeneration() == generation);
+    }
+    
+    /** Record that a bucket contains a message with the given id.
+     * 
+     * Buckets are added in order, so we need only check the most recently added
+     * bucket for duplicates.
+     * 
+     * @param id Message id
+     * @param bucket Bucket containing message
+     */
+    private void addLocation(String id, Bucket bucket) {
+        idLocations.merge(id, new Bucket[] { bucket }, (existing, added) -> 
+            existing[existing.length - 1] == bucket ? existing : append(existing, bucket)
+        );
+    }
+    
+    private static Bucket[] append(Bucket[] buckets, Bucket bucket) {
+        Bucket[] result = Arrays.copyOf(buckets, buckets.length + 1);
+        result[buckets.length] = bucket;
+        return result;
+    }
+    
+    /** Remove any of the given buckets from the locations recorded for an id.
+     * 
+     * @param id Message id
+     * @param removed Buckets which are being removed from this buffer
+     */
+    private void removeLocation(String id, Collection<Bucket> removed) {
+        idLocations.computeIfPresent(id, (key, buckets) -> {
+            Bucket[] remaining = Stream.of(buckets).filter(bucket->!removed.contains(bucket)).toArray(Bucket[]::new);
+            return remaining.length == 0 ? null : remaining;
+        });
     }
     
     public final Instant now() {
@@ -68,14 +318,23 @@ public class MessageBuffer {
     
     /** Checkpoint guarantees that no buffer entries will be written with a timestamp before the returned value.
      * 
-     * Essentially this gets a write lock on the buffer an then gets new timestamp from the buffer clock. This enables
-     * us to perform a repeatable read on the buffer by using the value returned by this function as the upper bound.
+     * This enables us to perform a repeatable read on the buffer by using the value returned by this function 
+     * as the upper bound. If appends are in progress, the timestamp of the last published append is returned.
+     * Otherwise, a new timestamp is taken from the buffer clock and recorded as a fence which any subsequent
+     * append must follow.
      * 
      * @return A timestamp 
      */
     public final Instant checkpoint() {
-        synchronized(this) {
-            return clock.instant();
+        while (true) {
+            Ticket last = issued.get();
+            Ticket watermark = published.get();
+            if (last.sequence != watermark.sequence) return watermark.timestamp;
+            Ticket fence = new Ticket(last.sequence, clock.instant());
+            if (issued.compareAndSet(last, fence)) {
+                published.compareAndSet(watermark, fence);
+                return fence.timestamp;
+            }
         }
     }
     
@@ -86,37 +345,119 @@ public class MessageBuffer {
         return current.isEmpty() && bucketCache.higherKey(bucketCache.firstKey()) == null;
     }
     
-    public Message addMessage(Message message) {
-        LOG.entry(message);
-        Message result;
-        Instant timestamp;
-        try {
+    /** Issue the next ticket.
+     * 
+     * The clock is read after the previous ticket, so timestamps increase with the ticket sequence.
+     * 
+     * @return A new ticket 
+     */
+    private Ticket issueTicket() {
+        Ticket last, next;
+        do {
+            last = issued.get();
+            next = new Ticket(last.sequence + 1, clock.instant());
+        } while (!issued.compareAndSet(last, next));
+        return next;
+    }
+    
+    /** Wait until all appends with earlier tickets have been published.
+     * 
+     * @param ticket ticket for the current append
+     */
+    private void awaitTurn(Ticket ticket) {
+        if (published.get().sequence == ticket.sequence - 1) return;
+        waiting.put(ticket.sequence, Thread.currentThread());
+        boolean interrupted = false;
+        // publish reads waiting after updating the watermark, so it cannot miss this thread
+        while (published.get().sequence != ticket.sequence - 1) {
+            LockSupport.park(this);
+            // the append must complete, so defer any interrupt until it has
+            if (Thread.interrupted()) interrupted = true;
+        }
+        waiting.remove(ticket.sequence);
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+    
+    /** Publish an append, and wake the append with the next ticket if it is waiting.
+     * 
+     * @param ticket ticket for the current append
+     */
+    private void publish(Ticket ticket) {
+        published.set(ticket);
+        Thread next = waiting.get(ticket.sequence + 1);
+        if (next != null) LockSupport.unpark(next);
+    }
+    
+    /** Copy serialized records into the current bucket.
+     * 
+     * Called only by the append whose turn it is, so no other append can be writing to the bucket.
+     * All the records are written to the same bucket, so a new bucket is allocated if they do not fit.
+     * 
+     * @param records Serialized messages
+     * @param messages Timestamped messages
+     * @return Messages reading from the bucket
+     */
+    private Message[] write(RecordBuffer records, Message[] messages) {
+        int required = records.getStoredSize();
+        long timestamp = TimeIndex.toNanos(messages[0].getTimestamp());
+        if (!current.fits(required)) {
+            histogram.rollover(timestamp);
             synchronized(this) {
-                timestamp = Instant.now(clock);
-                Message timestamped = message.setTimestamp(timestamp);
-                result = current.addMessage(timestamped, this::handleOverflow);
+                allocateNewBucket(calcNewSize(required), messages[0].getTimestamp());
             }
-        } catch (StreamingException e) {
-            throw runtime(e);
-        } 
-        return LOG.exit(result);
+        }
+        Bucket bucket = current;
+        Message[] result = new Message[messages.length];
+        for (int i = 0; i < messages.length; i++) {
+            histogram.record(Bucket.FRAME_SIZE + records.getDataLength(i) + records.getHeaderLength(i), timestamp);
+            BlobStore.Blob blob = records.takeBlob(i);
+            result[i] = bucket.addRecord(records.getBytes(), records.getOffset(i), records.getDataLength(i), records.getHeaderLength(i), messages[i], blob);
+            if (blob != null) pool.addBlobSize(bucket, blob.length());
+            addLocation(messages[i].getId(), bucket);
+        }
+        messageCount.addAndGet(messages.length);
+        return result;
+    }
+    
+    public Message addMessage(Message message) {
+        LOG.entry(message);
+        return LOG.exit(addMessages(message)[0]);
     }
     
     public Message[] addMessages(Message... messages) {
         LOG.entry((Object[])messages);
-        Message[] result = new Message[messages.length];
-        Instant timestamp;
+        if (messages.length == 0) return LOG.exit(messages);
+        RecordBuffer records = RecordBuffer.get();
+        // Segment files must be self contained, so large messages are only stored out of line in memory
+        BlobStore blobStore = segments == null ? pool.getBlobStore() : null;
         try {
-            synchronized(this) {
-                timestamp = Instant.now(clock);
-                for (int i = 0; i < messages.length; i++) {
-                    Message timestamped = messages[i].setTimestamp(timestamp);
-                    result[i] = current.addMessage(timestamped, this::handleOverflow);
-                }
-            }
+            // Serialize before taking a ticket, so that reading message data cannot hold up later appends
+            for (Message message : messages) records.add(message, blobStore);
         } catch (StreamingException e) {
+            records.clear();
             throw runtime(e);
-        } 
+        }
+        Ticket ticket = issueTicket();
+        Journal journal = journaled ? pool.getJournal() : null;
+        long entry = 0;
+        Message[] result;
+        try {
+            Message[] timestamped = new Message[messages.length];
+            for (int i = 0; i < messages.length; i++) {
+                timestamped[i] = messages[i].setTimestamp(ticket.timestamp);
+                records.setTimestamp(i, ticket.timestamp);
+            }
+            awaitTurn(ticket);
+            if (journal != null) entry = journal.append(name, records, TimeIndex.toNanos(ticket.timestamp));
+            result = write(records, timestamped);
+        } finally {
+            // Publish even if the append failed, so that later appends are not blocked
+            records.clear();
+            awaitTurn(ticket);
+            publish(ticket);
+        }
+        // Wait for the journal only once published, so that the appends which follow can share a force
+        if (journal != null) journal.awaitSync(entry);
         return LOG.exit(result);
     }
     
@@ -125,7 +466,12 @@ public class MessageBuffer {
     }
     
     public Optional<Instant> lastTimestamp() {
-        return Optional.ofNullable(bucketCache.lastEntry()).flatMap(entry->entry.getValue().lastTimestamp());
+        // The current bucket may be empty if it follows buckets restored from a snapshot
+        return bucketCache.descendingMap().values().stream()
+            .map(Bucket::lastTimestamp)
+            .filter(Optional::isPresent)
+            .findFirst()
+            .orElse(Optional.empty());
     }
     
     /** Get messages after a given timestamp.
@@ -140,7 +486,7 @@ public class MessageBuffer {
     public MessageIterator getMessagesAfter(Instant timestamp, Predicate<Message>... filters) {
         LOG.entry(timestamp);
         Instant searchFrom = bucketCache.floorKey(timestamp);
-        Predicate<Message> filter = Stream.of(filters).reduce(message->true,  Predicate::and);
+        RecordFilter filter = RecordFilter.of(filters);
         if (searchFrom == null) searchFrom = timestamp;
         LOG.debug("returning messages from buckets after {}", searchFrom);
         return LOG.exit(
@@ -148,8 +494,7 @@ public class MessageBuffer {
                 .tailMap(searchFrom, true)
                 .values()
                 .stream()
-                .flatMap(bucket->bucket.getMessagesAfter(timestamp))
-                .filter(filter)
+                .flatMap(bucket->read(bucket, b->b.getMessagesAfter(timestamp, filter)))
                 .iterator(), ()->{})
         );
     }
@@ -160,33 +505,33 @@ public class MessageBuffer {
      * @param fromInclusive lower bound includes given value if true
      * @param to upper bound 
      * @param toInclusive upper bound includes given value if true
-     * @param filters predicates used to filter the result 
+     * @param filters predicates used to filter the result; NO_ACKS, IS_ACK, POSTED_LOCALLY
+     * and FromRemote filters are evaluated against the bucket index, so messages they
+     * reject are never read.
      * @return 
      */
     public MessageIterator getMessagesBetween(Instant from, boolean fromInclusive, Instant to, boolean toInclusive, Predicate<Message>... filters) {
         LOG.entry(from, fromInclusive, to, toInclusive);
         Instant searchFrom = Optional.ofNullable(bucketCache.floorKey(from)).orElse(from);
-        Predicate<Message> filter = Stream.of(filters).reduce(message->true,  Predicate::and);
+        RecordFilter filter = RecordFilter.of(filters);
         LOG.debug("returning messages from buckets between {} and {}", searchFrom, to);
         return LOG.exit(
             MessageIterator.of(bucketCache
                 .subMap(searchFrom, true, to, true)
                 .values()
                 .stream()
-                .flatMap(bucket->bucket.getMessagesBetween(from, fromInclusive, to, toInclusive))
-                .filter(filter)
+                .flatMap(bucket->read(bucket, b->b.getMessagesBetween(from, fromInclusive, to, toInclusive, filter)))
                 .iterator(), ()->{})
         );
     }
     
     public MessageIterator getMessages(String id, Predicate<Message>... filters) {
         LOG.entry(id);
-        Predicate<Message> filter = Stream.of(filters).reduce(message->true,  Predicate::and);
+        RecordFilter filter = RecordFilter.of(filters);
         return LOG.exit(
             MessageIterator.of(
-                 bucketCache.values().stream()
-                    .flatMap(bucket->bucket.getMessages(id))
-                    .filter(filter)
+                 Stream.of(idLocations.getOrDefault(id, NO_BUCKETS))
+                    .flatMap(bucket->read(bucket, b->b.getMessages(id, filter)))
             )
         );
     }
@@ -198,30 +543,58 @@ public class MessageBuffer {
         }
     }
 
-    void deallocateBucket(Bucket bucket) {
+    private Instant findKey(Bucket bucket) {
+        for (Map.Entry<Instant, Bucket> entry : bucketCache.entrySet()) {
+            if (entry.getValue() == bucket) return entry.getKey();
+        }
+        return null;
+    }
+    
+    /** Deallocate a bucket, and any older buckets, from this buffer.
+     * 
+     * @param bucket Bucket to deallocate
+     * @return false if the bucket is the current bucket and was retained
+     */
+    boolean deallocateBucket(Bucket bucket) {
         LOG.entry(bucket);
         // 99.9% of the time we are deallocating old buckets which are nowhere near the insertion point on the buffer.
         // However, this gets very sticky if we have an inactive feed; we could then potentially be trying to deallocate
         // the topmost bucket in the buffer. Which has significant concurrency implications. So what we do is just refuse
         // to deallocate the 'current' bucket if we are asked. We call pool.reallocateBucket instead.
         Map<Instant, Bucket> toRemove;
+        boolean retained;
+        Instant key = null;
         synchronized(this) {
-            if (bucket == current) {
+            retained = bucket == current;
+            if (retained) {
                 pool.reallocateBucket(bucket);
                 toRemove = bucketCache.headMap(bucketCache.firstKey(), false);
             } else {
-                toRemove = bucketCache.headMap(bucket.firstTimestamp().orElseThrow(()->new RuntimeException("tying to delete bucket with no entries")), true);
+                // Buckets are keyed by the time they were allocated, which is not necessarily the
+                // timestamp of their first message, so we search for the bucket itself. Usually
+                // it is the oldest bucket.
+                key = findKey(bucket);
+                toRemove = key == null ? Collections.emptyMap() : bucketCache.headMap(key, true);
             }
         }
         
-        pool.releaseBuckets(toRemove.values());
         // toRemove.clear() is not necessarily atomic, and we want to ensure elements are remove
-        // from first to last in order to maintain consistency.
+        // from first to last in order to maintain consistency. Buckets are only released back
+        // to the pool once they are no longer reachable through the bucket cache, since the pool
+        // may immediately reuse them.
+        List<Bucket> removed = new ArrayList<>();
+        if (!retained && key == null) removed.add(bucket);
         Iterator<Map.Entry<Instant,Bucket>> iterator = toRemove.entrySet().iterator();
         while(iterator.hasNext()) { 
-            iterator.next(); 
+            Bucket next = iterator.next().getValue();
+            removed.add(next); 
             iterator.remove(); 
+            messageCount.addAndGet(-next.getMessageCount());
         }
-        LOG.exit();
+        for (Bucket removedBucket : removed) {
+            removedBucket.getIds().forEach(id->removeLocation(id, removed));
+        }
+        pool.releaseBuckets(removed);
+        return LOG.exit(!retained);
     }    
 }
@@ -8,17 +8,59 @@ package com.softwareplumbers.feed.impl.buffer;
 import java.time.Clock;
 import java.time.Instant;
 import java.time.ZoneId;
+import java.util.concurrent.atomic.AtomicLong;
 
-/**
+/** Clock which never returns the same instant twice.
+ *
+ * The clock holds the last value returned, in nanoseconds since the epoch, in
+ * a single atomic long. Each call reads the system time and returns the later of
+ * the system time and the last value plus one nanosecond, set with a compare-and-set,
+ * so the clock is strictly monotonic without taking a lock. If more than one value
+ * per nanosecond is requested, the clock runs ahead of the system time until demand
+ * drops; it never repeats a value or runs backwards.
+ *
+ * System time is taken from System.nanoTime, calibrated against the wall clock, so
+ * that it has a finer resolution than the wall clock. The calibration is
+ * checked every second, and refreshed if the two have drifted more than a millisecond
+ * apart.
  *
  * @author jonathan
  */
 public class MessageClock extends Clock {
-    
-    ZoneId zoneId;
-    
-    long nanos = 0;
-    long lastSystemTime;
+
+    private static final long NANOS_PER_MILLI = 1000000L;
+    private static final long MAX_DRIFT = NANOS_PER_MILLI;
+    private static final long CALIBRATION_INTERVAL = 1000 * NANOS_PER_MILLI;
+
+    /** Last value returned, in nanoseconds since the epoch */
+    final AtomicLong last = new AtomicLong(Long.MIN_VALUE);
+    /** Wall clock time, in epoch nanos, corresponding to a nanoTime of zero */
+    private volatile long offset = wallClock() - System.nanoTime();
+    /** nanoTime at which the calibration is next checked */
+    private volatile long nextCalibration = System.nanoTime() + CALIBRATION_INTERVAL;
+
+    /** Read the wall clock, at the best precision the platform offers.
+     *
+     * @return the wall clock time in nanoseconds since the epoch
+     */
+    private static long wallClock() {
+        return TimeIndex.toNanos(Clock.systemUTC().instant());
+    }
+
+    /** Get the current system time.
+     *
+     * @return the system time in nanoseconds since the epoch
+     */
+    private long systemTime() {
+        long ticks = System.nanoTime();
+        if (ticks - nextCalibration > 0) {
+            nextCalibration = ticks + CALIBRATION_INTERVAL;
+            long wallClock = wallClock();
+            long time = ticks + offset;
+            if (Math.abs(time - wallClock) > MAX_DRIFT) offset = wallClock - ticks;
+        }
+        return ticks + offset;
+    }
 
     @Override
     public ZoneId getZone() {
@@ -30,18 +72,37 @@ public class MessageClock extends Clock {
         throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
     }
 
+    /** Get the next value of the clock.
+     *
+     * @return A time in nanoseconds since the epoch, greater than any value previously returned
+     */
+    public long nanos() {
+        long now = systemTime();
+        while (true) {
+            long previous = last.get();
+            long next = now > previous ? now : previous + 1;
+            if (last.compareAndSet(previous, next)) return next;
+        }
+    }
+
     @Override
     public Instant instant() {
-        long nextSystemTime = System.currentTimeMillis();
-        synchronized (this) {
-            if (nextSystemTime <= lastSystemTime) {
-                nanos++;
-            } else {
-                lastSystemTime = nextSystemTime;
-                nanos = 0;
-            }
-            return Instant.ofEpochMilli(lastSystemTime).plusNanos(nanos);
+        return TimeIndex.toInstant(nanos());
+    }
+
+    /** Move the clock forward past a timestamp.
+     *
+     * After this call, every value returned by the clock is later than the given timestamp.
+     * Has no effect if the clock has already returned a later value.
+     *
+     * @param timestamp Timestamp which the clock must not repeat or precede
+     */
+    public void advance(Instant timestamp) {
+        long nanos = TimeIndex.toNanos(timestamp);
+        while (true) {
+            long previous = last.get();
+            if (previous >= nanos || last.compareAndSet(previous, nanos)) return;
         }
     }
-    
+
 }
@@ -0,0 +1,98 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.feed.impl.buffer;
+
+/** Statistics on the messages written to a buffer, used to size new buckets.
+ *
+ * Record sizes are counted in power-of-two bins. The arrival rate is measured in
+ * bytes per second over the period during which each bucket was written, and
+ * smoothed with an exponentially weighted average. Counts are halved periodically
+ * so that the histogram follows changes in the traffic.
+ *
+ * A histogram is only updated by the append whose turn it is (see MessageBuffer),
+ * so it needs no synchronization.
+ *
+ * @author jonathan
+ */
+class MessageHistogram {
+
+    private static final int BINS = 32;
+    private static final long DECAY_COUNT = 65536;
+    private static final double RATE_WEIGHT = 0.5;
+
+    private final long[] counts = new long[BINS];
+    private long total = 0;
+    private long periodStart = 0;
+    private long periodBytes = 0;
+    private boolean periodStarted = false;
+    private double byteRate = Double.NaN;
+
+    private static int bin(int size) {
+        return Math.min(BINS - 1, 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1));
+    }
+
+    /** Record a message written to the buffer.
+     *
+     * @param size Stored size of the message, in bytes
+     * @param timestamp Message timestamp, in epoch nanoseconds
+     */
+    void record(int size, long timestamp) {
+        if (!periodStarted) {
+            periodStart = timestamp;
+            periodStarted = true;
+        }
+        periodBytes += size;
+        counts[bin(size)]++;
+        if (++total >= DECAY_COUNT) {
+            total = 0;
+            for (int i = 0; i < BINS; i++) {
+                counts[i] /= 2;
+                total += counts[i];
+            }
+        }
+    }
+
+    /** Record that a new bucket is being allocated.
+     *
+     * Updates the arrival rate with the rate at which the previous bucket was filled.
+     *
+     * @param timestamp Time of allocation, in epoch nanoseconds
+     */
+    void rollover(long timestamp) {
+        if (periodStarted && timestamp > periodStart) {
+            double rate = periodBytes * 1e9 / (timestamp - periodStart);
+            byteRate = Double.isNaN(byteRate) ? rate : RATE_WEIGHT * rate + (1 - RATE_WEIGHT) * byteRate;
+        }
+        periodStarted = false;
+        periodBytes = 0;
+    }
+
+    /** Get the average arrival rate.
+     *
+     * @return bytes per second, or NaN if no bucket has yet been filled
+     */
+    double getByteRate() {
+        return byteRate;
+    }
+
+    /** Get an upper bound on the size of the given fraction of messages.
+     *
+     * @param fraction Fraction of messages, between 0 and 1
+     * @return A power of two which is at least the size of that fraction of recorded messages, or 0 if none are recorded
+     */
+    int getSizePercentile(double fraction) {
+        long count = 0;
+        for (int i = 0; i < BINS; i++) count += counts[i];
+        if (count == 0) return 0;
+        long target = (long)Math.ceil(count * fraction);
+        long seen = 0;
+        for (int i = 0; i < BINS; i++) {
+            seen += counts[i];
+            if (seen >= target) return i >= 31 ? Integer.MAX_VALUE : 1 << i;
+        }
+        return Integer.MAX_VALUE;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.feed.impl.buffer;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/** Eviction policy applying minimum and maximum size quotas to individual buffers.
+ *
+ * Any buffer larger than its maximum quota has its oldest buckets evicted, whatever
+ * the size of the pool. When the pool is larger than its maximum size, the oldest
+ * buckets are evicted from buffers which would remain at or above their minimum
+ * quota; buffers at their minimum keep their history even if they are quiet. This
+ * keeps a single busy feed from pushing all other feeds out of the pool.
+ *
+ * Quotas are set by buffer name (for a BufferingFeedService, the feed path). Buffers
+ * with no quota set use the default quota.
+ *
+ * @author jonathan
+ */
+public class QuotaEvictionPolicy implements EvictionPolicy {
+
+    private static class Quota {
+        final long min;
+        final long max;
+
+        Quota(long min, long max) {
+            this.min = min;
+            this.max = max;
+        }
+    }
+
+    private final Map<String, Quota> quotas = new ConcurrentHashMap<>();
+    private volatile Quota defaultQuota;
+
+    /** Create a quota policy.
+     *
+     * @param defaultMin Default minimum size of a buffer in bytes
+     * @param defaultMax Default maximum size of a buffer in bytes
+     */
+    public QuotaEvictionPolicy(long defaultMin, long defaultMax) {
+        this.defaultQuota = new Quota(defaultMin, defaultMax);
+    }
+
+    /** Create a quota policy with no default quota.
+     */
+    public QuotaEvictionPolicy() {
+        this(0, Long.MAX_VALUE);
+    }
+
+    /** Set the quota for a named buffer.
+     *
+     * @param bufferName Name of buffer
+     * @param min Minimum size in bytes which will be retained when the pool is full
+     * @param max Maximum size in bytes of the buffer
+     * @return this policy
+     */
+    public QuotaEvictionPolicy setQuota(String bufferName, long min, long max) {
+        quotas.put(bufferName, new Quota(min, max));
+        return this;
+    }
+
+    private Quota getQuota(MessageBuffer buffer) {
+        return buffer.getName().map(name->quotas.getOrDefault(name, defaultQuota)).orElse(defaultQuota);
+    }
+
+    @Override
+    public Optional<BucketAllocation> selectVictim(Stream<BucketAllocation> candidates, BufferPool pool) {
+        boolean poolFull = pool.getSize() > pool.getMaxSize();
+        return candidates.filter(candidate->{
+            Quota quota = getQuota(candidate.getBuffer());
+            long size = candidate.getBuffer().getSize();
+            return size > quota.max || (poolFull && size - candidate.getSize() >= quota.min);
+        }).findFirst();
+    }
+}
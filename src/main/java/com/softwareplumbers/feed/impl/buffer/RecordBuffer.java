@@ -0,0 +1,185 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.feed.impl.buffer;
+
+import com.softwareplumbers.feed.FeedExceptions.StreamingException;
+import com.softwareplumbers.feed.Message;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.util.Arrays;
+
+/** Scratch storage into which messages are serialized before they are copied into a bucket.
+ *
+ * Serializing into a record buffer allows a writer to find the size of its records
+ * without holding any lock on the message buffer. Each thread has a record buffer
+ * which is reused for successive appends.
+ *
+ * @author jonathan
+ */
+class RecordBuffer extends OutputStream {
+
+    private static final int INITIAL_SIZE = 4096;
+    /** Larger buffers are discarded after use, rather than being retained by the thread */
+    private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+
+    private static final ThreadLocal<RecordBuffer> BUFFERS = ThreadLocal.withInitial(RecordBuffer::new);
+
+    private byte[] bytes = new byte[INITIAL_SIZE];
+    private int count = 0;
+    private int[] offsets = new int[1];
+    private int[] dataLengths = new int[1];
+    private int[] headerLengths = new int[1];
+    private BlobStore.Blob[] blobs = new BlobStore.Blob[1];
+    private int records = 0;
+    private boolean inUse = false;
+
+    /** Get a record buffer for the current thread.
+     *
+     * The buffer must be cleared after use.
+     *
+     * @return an empty record buffer
+     */
+    static RecordBuffer get() {
+        RecordBuffer buffer = BUFFERS.get();
+        if (buffer.inUse) buffer = new RecordBuffer();
+        buffer.inUse = true;
+        return buffer;
+    }
+
+    private void ensureCapacity(int required) {
+        if (required < 0) throw new OutOfMemoryError("Record too large");
+        if (required > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(required, bytes.length * 2));
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(count + 1);
+        bytes[count++] = (byte)b;
+    }
+
+    @Override
+    public void write(byte[] input, int offset, int length) {
+        ensureCapacity(count + length);
+        System.arraycopy(input, offset, bytes, count, length);
+        count += length;
+    }
+
+    /** Serialize a message as a record.
+     *
+     * Headers are written in the binary format described in HeaderRecord. If a blob
+     * store is given and the message data exceeds its threshold, the data is moved
+     * into a blob and the record is left with no data.
+     *
+     * @param message Message to serialize
+     * @param blobStore Store for large message data, or null
+     * @throws StreamingException if message data could not be read, or a blob could not be written
+     */
+    void add(Message message, BlobStore blobStore) throws StreamingException {
+        if (records == offsets.length) {
+            offsets = Arrays.copyOf(offsets, records * 2);
+            dataLengths = Arrays.copyOf(dataLengths, records * 2);
+            headerLengths = Arrays.copyOf(headerLengths, records * 2);
+            blobs = Arrays.copyOf(blobs, records * 2);
+        }
+        int start = count;
+        message.writeData(this);
+        if (blobStore != null && count - start > blobStore.getThreshold()) {
+            try {
+                blobs[records] = blobStore.store(bytes, start, count - start);
+            } catch (IOException e) {
+                throw new StreamingException(e);
+            }
+            count = start;
+        }
+        int endData = count;
+        HeaderRecord.write(message, this);
+        offsets[records] = start;
+        dataLengths[records] = endData - start;
+        headerLengths[records] = count - endData;
+        records++;
+    }
+
+    /** Set the timestamp in the headers of a record.
+     *
+     * @param record Record number
+     * @param timestamp New timestamp
+     */
+    void setTimestamp(int record, Instant timestamp) {
+        HeaderRecord.setTimestamp(bytes, offsets[record] + dataLengths[record], timestamp);
+    }
+
+    /** Get the number of records in the buffer.
+     *
+     * @return number of records
+     */
+    int size() {
+        return records;
+    }
+
+    byte[] getBytes() {
+        return bytes;
+    }
+
+    int getOffset(int record) {
+        return offsets[record];
+    }
+
+    int getDataLength(int record) {
+        return dataLengths[record];
+    }
+
+    int getHeaderLength(int record) {
+        return headerLengths[record];
+    }
+
+    /** Get the blob holding the data of a record, without taking it.
+     *
+     * @param record Record number
+     * @return The blob, or null if the record data is held in the record itself
+     */
+    BlobStore.Blob getBlob(int record) {
+        return blobs[record];
+    }
+
+    /** Take the blob holding the data of a record.
+     *
+     * Once taken, the blob is no longer released when this buffer is cleared.
+     *
+     * @param record Record number
+     * @return The blob, or null if the record data is held in the record itself
+     */
+    BlobStore.Blob takeBlob(int record) {
+        BlobStore.Blob blob = blobs[record];
+        blobs[record] = null;
+        return blob;
+    }
+
+    /** Get the space needed to store all records in a bucket.
+     *
+     * @return size in bytes, including the frame of each record
+     */
+    int getStoredSize() {
+        return count + records * Bucket.FRAME_SIZE;
+    }
+
+    /** Discard all records so that the buffer can be reused.
+     *
+     * Any blobs which have not been taken are released.
+     */
+    void clear() {
+        for (int i = 0; i < records; i++) {
+            if (blobs[i] != null) {
+                blobs[i].release();
+                blobs[i] = null;
+            }
+        }
+        count = 0;
+        records = 0;
+        inUse = false;
+        if (bytes.length > MAX_RETAINED_SIZE) bytes = new byte[INITIAL_SIZE];
+    }
+}
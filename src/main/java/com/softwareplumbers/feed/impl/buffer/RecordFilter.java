@@ -0,0 +1,112 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.feed.impl.buffer;
+
+import com.softwareplumbers.feed.Filters;
+import com.softwareplumbers.feed.Message;
+import com.softwareplumbers.feed.MessageType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Predicate;
+
+/** Filter which can be evaluated against the index entries of a bucket.
+ *
+ * The time index of a bucket holds a few flags for each record. Filters which
+ * depend only on those flags (NO_ACKS, IS_ACK, POSTED_LOCALLY), or on the remote
+ * server id held at a fixed offset in the header record (FromRemote), are evaluated
+ * by the bucket before a message is created. Any other filters are left in the
+ * residual predicate, which is applied to the messages which pass.
+ *
+ * @author jonathan
+ */
+class RecordFilter {
+
+    /** Record is an acknowledgement */
+    static final byte ACK = 1;
+    /** Record was received from a remote server */
+    static final byte REMOTE = 2;
+
+    static final RecordFilter ALL = new RecordFilter((byte)0, (byte)0, null, message->true);
+
+    private final byte required;
+    private final byte excluded;
+    private final UUID remote;
+    private final Predicate<Message> residual;
+
+    private RecordFilter(byte required, byte excluded, UUID remote, Predicate<Message> residual) {
+        this.required = required;
+        this.excluded = excluded;
+        this.remote = remote;
+        this.residual = residual;
+    }
+
+    /** Get the index flags for a message.
+     *
+     * @param message Message to be indexed
+     * @return flags
+     */
+    static byte flagsOf(Message message) {
+        return (byte)(
+            (message.getType() == MessageType.ACK ? ACK : 0)
+            | (message.getRemoteInfo().isPresent() ? REMOTE : 0)
+        );
+    }
+
+    /** Create a filter from a set of predicates.
+     *
+     * @param filters Predicates which messages must match
+     * @return A filter equivalent to the conjunction of the predicates
+     */
+    @SafeVarargs
+    static RecordFilter of(Predicate<Message>... filters) {
+        if (filters.length == 0) return ALL;
+        byte required = 0;
+        byte excluded = 0;
+        UUID remote = null;
+        List<Predicate<Message>> residual = new ArrayList<>();
+        for (Predicate<Message> filter : filters) {
+            if (filter == Filters.NO_ACKS) {
+                excluded |= ACK;
+            } else if (filter == Filters.IS_ACK) {
+                required |= ACK;
+            } else if (filter == Filters.POSTED_LOCALLY) {
+                excluded |= REMOTE;
+            } else if (filter instanceof Filters.FromRemote && (remote == null || remote.equals(((Filters.FromRemote)filter).remote))) {
+                required |= REMOTE;
+                remote = ((Filters.FromRemote)filter).remote;
+            } else {
+                residual.add(filter);
+            }
+        }
+        return new RecordFilter(required, excluded, remote, residual.stream().reduce(message->true, Predicate::and));
+    }
+
+    /** Test the index flags of a record.
+     *
+     * @param flags Flags from the time index
+     * @return false if the record cannot match
+     */
+    boolean accepts(byte flags) {
+        return (flags & required) == required && (flags & excluded) == 0;
+    }
+
+    /** Get the remote server id which records must have been received from.
+     *
+     * @return server id, or null if any server (or none) is acceptable.
+     */
+    UUID getRemote() {
+        return remote;
+    }
+
+    /** Get the predicate which must be applied to messages which pass this filter.
+     *
+     * @return residual predicate
+     */
+    Predicate<Message> getResidual() {
+        return residual;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.feed.impl.buffer;
+
+import com.softwareplumbers.feed.FeedExceptions.InvalidPathSyntax;
+import com.softwareplumbers.feed.FeedPath;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/** Eviction policy applying retention limits to feeds by path.
+ *
+ * Each feed may have a maximum message age, a maximum size in bytes, and a maximum
+ * number of messages. The oldest buckets of a feed are evicted, whatever the size
+ * of the pool, when they contain only messages older than the maximum age, when the
+ * feed is larger than its maximum size, or when the feed would still hold at least
+ * its maximum number of messages without them.
+ *
+ * Limits are set for a feed path prefix and apply to every feed under that path; a
+ * feed uses the limits of the longest prefix for which limits are set. Buffers are
+ * matched by name, which for a BufferingFeedService is the feed path. Limits set for
+ * FeedPath.ROOT apply to all feeds, including unnamed buffers.
+ *
+ * This policy only evicts buckets which are beyond their feed's retention, so it is
+ * usually combined with a policy which keeps the pool within its maximum size, e.g.
+ * retention.or(EvictionPolicy.FIFO). Use BufferPool.setSweeper to apply it regularly.
+ *
+ * @author jonathan
+ */
+public class RetentionPolicy implements EvictionPolicy {
+
+    private static class Retention {
+        final Duration maxAge;
+        final long maxBytes;
+        final long maxMessages;
+
+        Retention(Duration maxAge, long maxBytes, long maxMessages) {
+            this.maxAge = maxAge;
+            this.maxBytes = maxBytes;
+            this.maxMessages = maxMessages;
+        }
+    }
+
+    private static final Retention UNLIMITED = new Retention(null, Long.MAX_VALUE, Long.MAX_VALUE);
+
+    private final Clock clock;
+    private final Map<FeedPath, Retention> retention = new ConcurrentHashMap<>();
+    /** Retention resolved for each buffer name */
+    private final Map<String, Retention> resolved = new ConcurrentHashMap<>();
+
+    /** Create a retention policy with no limits set.
+     *
+     * @param clock Clock used to determine message age
+     */
+    public RetentionPolicy(Clock clock) {
+        this.clock = clock;
+    }
+
+    /** Set retention limits for all feeds under a path.
+     *
+     * @param prefix Path of feeds to which the limits apply
+     * @param maxAge Maximum age of messages, or null for no age limit
+     * @param maxBytes Maximum size of a feed in bytes
+     * @param maxMessages Maximum number of messages in a feed
+     * @return this policy
+     */
+    public RetentionPolicy setRetention(FeedPath prefix, Duration maxAge, long maxBytes, long maxMessages) {
+        retention.put(prefix, new Retention(maxAge, maxBytes, maxMessages));
+        resolved.clear();
+        return this;
+    }
+
+    private Retention resolve(String name) {
+        FeedPath path;
+        try {
+            path = FeedPath.valueOf(name);
+        } catch (InvalidPathSyntax e) {
+            path = FeedPath.ROOT;
+        }
+        while (true) {
+            Retention result = retention.get(path);
+            if (result != null) return result;
+            if (path.isEmpty()) return UNLIMITED;
+            path = path.parent;
+        }
+    }
+
+    private Retention getRetention(MessageBuffer buffer) {
+        String name = buffer.getName().orElse("");
+        return resolved.computeIfAbsent(name, this::resolve);
+    }
+
+    private static boolean isExpired(BucketAllocation candidate, Retention limits, Instant now) {
+        return limits.maxAge != null
+            && candidate.getLastTimestamp().map(last->last.isBefore(now.minus(limits.maxAge))).orElse(false);
+    }
+
+    @Override
+    public Optional<BucketAllocation> selectVictim(Stream<BucketAllocation> candidates, BufferPool pool) {
+        Instant now = clock.instant();
+        return candidates.filter(candidate->{
+            MessageBuffer buffer = candidate.getBuffer();
+            Retention limits = getRetention(buffer);
+            return isExpired(candidate, limits, now)
+                || buffer.getSize() > limits.maxBytes
+                || buffer.getMessageCount() - candidate.getMessageCount() >= limits.maxMessages;
+        }).findFirst();
+    }
+}
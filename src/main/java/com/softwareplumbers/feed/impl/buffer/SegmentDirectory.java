@@ -0,0 +1,157 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.feed.impl.buffer;
+
+import com.softwareplumbers.feed.FeedExceptions.StorageException;
+import static com.softwareplumbers.feed.FeedExceptions.runtime;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+/** Directory holding the segment files of a single message buffer.
+ *
+ * Segment files are named with a sequence number which increases each time a
+ * segment is created, so a bucket which has been resized can be told apart from
+ * the (possibly undeleted) file it replaced.
+ *
+ * @author jonathan
+ */
+class SegmentDirectory {
+
+    private static final XLogger LOG = XLoggerFactory.getXLogger(SegmentDirectory.class);
+
+    private static final String PREFIX = "feed";
+    private static final String SUFFIX = ".segment";
+
+    private final Path path;
+    private final AtomicLong sequence = new AtomicLong(0);
+
+    private static String encode(String name) {
+        try {
+            return PREFIX + URLEncoder.encode(name, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String decode(String directoryName) {
+        try {
+            return URLDecoder.decode(directoryName.substring(PREFIX.length()), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static long getSequence(Path file) {
+        String name = file.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Open (creating if necessary) the segment directory for a named buffer.
+     *
+     * @param root Root directory of the buffer pool
+     * @param name Name of the buffer
+     */
+    SegmentDirectory(Path root, String name) {
+        this.path = root.resolve(encode(name));
+        try {
+            Files.createDirectories(path);
+        } catch (IOException e) {
+            throw runtime(new StorageException(e));
+        }
+    }
+
+    /** Get the names of the buffers which have segment files under a root directory.
+     *
+     * @param root Root directory of the buffer pool
+     * @return Buffer names
+     */
+    static Stream<String> getNames(Path root) {
+        LOG.entry(root);
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(root, PREFIX + "*")) {
+            for (Path directory : stream) {
+                if (Files.isDirectory(directory) && hasSegments(directory)) names.add(decode(directory.getFileName().toString()));
+            }
+        } catch (IOException e) {
+            throw LOG.throwing(runtime(new StorageException(e)));
+        }
+        return LOG.exit(names.stream());
+    }
+
+    private static boolean hasSegments(Path directory) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : stream) {
+                if (getSequence(file) >= 0) return true;
+            }
+        }
+        return false;
+    }
+
+    /** Get a path for a new segment file.
+     *
+     * @return a path which does not yet exist.
+     */
+    Path nextSegment() {
+        return path.resolve(sequence.getAndIncrement() + SUFFIX);
+    }
+
+    /** Open all segment files in this directory.
+     *
+     * Where more than one segment has the same start time, the segment with the
+     * highest sequence number is used and the others are deleted. Unreadable files
+     * are logged and ignored. Subsequent calls to nextSegment will return paths
+     * which sort after all existing segments.
+     *
+     * @return Buckets in the directory, keyed by bucket start time.
+     */
+    NavigableMap<Instant, MappedBucket> open() {
+        LOG.entry(path);
+        TreeSet<Path> files = new TreeSet<>((a,b)->Long.compare(getSequence(a), getSequence(b)));
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(path, "*" + SUFFIX)) {
+            for (Path file : stream) {
+                if (getSequence(file) >= 0) files.add(file);
+            }
+        } catch (IOException e) {
+            throw LOG.throwing(runtime(new StorageException(e)));
+        }
+        NavigableMap<Instant, MappedBucket> result = new TreeMap<>();
+        for (Path file : files) {
+            sequence.set(getSequence(file) + 1);
+            try {
+                MappedBucket bucket = MappedBucket.open(this, file);
+                MappedBucket replaced = result.put(bucket.getFrom(), bucket);
+                if (replaced != null) replaced.release();
+            } catch (IOException e) {
+                LOG.warn("Ignoring segment file {}: {}", file, e.getMessage());
+            }
+        }
+        return LOG.exit(result);
+    }
+
+    @Override
+    public String toString() {
+        return path.toString();
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.feed.impl.buffer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+/** Snapshot of the contents of the in-memory buffers of a pool.
+ *
+ * A snapshot file starts with a magic number and version, followed by the number
+ * of buffers. Each buffer is written as its name (an int length and UTF-8 bytes)
+ * and its number of buckets, followed by each bucket's start time in epoch nanos
+ * and the bucket itself in the format written by Bucket.writeSnapshot: the counts
+ * and lengths of its contents, the time index, the id index, then the records.
+ *
+ * A snapshot is read by mapping each bucket into memory separately, so the file
+ * may be larger than a single mapping allows. The indexes are copied onto the heap,
+ * but the records are left in the mapped file, so the time taken to load a snapshot
+ * depends on the number of messages rather than their size.
+ *
+ * A snapshot is written to a temporary file which then replaces the snapshot file,
+ * so that a file which is still mapped is never overwritten.
+ *
+ * @author jonathan
+ */
+class Snapshot {
+
+    private static final XLogger LOG = XLoggerFactory.getXLogger(Snapshot.class);
+
+    static final int MAGIC = 0x46534E50;
+    static final int VERSION = 2;
+
+    private Snapshot() {
+    }
+
+    /** Write a snapshot of the given buffers.
+     *
+     * Empty buckets are omitted.
+     *
+     * @param file File to write
+     * @param buffers Buffers to write, by name
+     * @throws IOException if the snapshot could not be written
+     */
+    static void write(Path file, Map<String, MessageBuffer> buffers) throws IOException {
+        LOG.entry(file, buffers.size());
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(buffers.size());
+            for (Map.Entry<String, MessageBuffer> buffer : buffers.entrySet()) {
+                Map<Instant, Bucket> buckets = new TreeMap<>();
+                buffer.getValue().getBuckets().forEach((from, bucket)->{ if (!bucket.isEmpty()) buckets.put(from, bucket); });
+                HeaderRecord.writeString(out, buffer.getKey());
+                out.writeInt(buckets.size());
+                for (Map.Entry<Instant, Bucket> bucket : buckets.entrySet()) {
+                    out.writeLong(TimeIndex.toNanos(bucket.getKey()));
+                    bucket.getValue().writeSnapshot(out);
+                }
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw LOG.throwing(e);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOG.exit();
+    }
+
+    /** Read a snapshot.
+     *
+     * @param file Snapshot file
+     * @return Buckets in the snapshot, keyed by start time, for each buffer name
+     * @throws IOException if the file cannot be read or is not a valid snapshot
+     */
+    static Map<String, NavigableMap<Instant, Bucket>> read(Path file) throws IOException {
+        LOG.entry(file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long position = 0;
+            ByteBuffer header = read(channel, position, 12);
+            position += 12;
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) throw new IOException("Not a snapshot file: " + file);
+            Map<String, NavigableMap<Instant, Bucket>> result = new HashMap<>();
+            int bufferCount = header.getInt();
+            for (int i = 0; i < bufferCount; i++) {
+                int nameLength = read(channel, position, 4).getInt();
+                if (nameLength < 0) throw new IOException("Corrupt snapshot file: " + file);
+                String name = new String(read(channel, position + 4, nameLength).array(), StandardCharsets.UTF_8);
+                int bucketCount = read(channel, position + 4 + nameLength, 4).getInt();
+                position += 8 + nameLength;
+                NavigableMap<Instant, Bucket> buckets = new TreeMap<>();
+                for (int j = 0; j < bucketCount; j++) {
+                    Instant from = TimeIndex.toInstant(read(channel, position, 8).getLong());
+                    position += 8;
+                    long size = Bucket.getSnapshotSize(read(channel, position, Bucket.SNAPSHOT_HEADER_SIZE));
+                    if (size > Integer.MAX_VALUE || position + size > channel.size()) throw new IOException("Corrupt snapshot file: " + file);
+                    buckets.put(from, Bucket.readSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, position, size)));
+                    position += size;
+                }
+                result.put(name, buckets);
+            }
+            return LOG.exit(result);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw LOG.throwing(new IOException("Truncated snapshot file: " + file, e));
+        }
+    }
+
+    /** Read part of a snapshot file onto the heap.
+     *
+     * @param channel Snapshot file
+     * @param position Position in the file at which to start reading
+     * @param size Number of bytes to read
+     * @return A buffer holding the bytes read, positioned at its start
+     * @throws IOException if the file ends before size bytes are read
+     */
+    private static ByteBuffer read(FileChannel channel, long position, int size) throws IOException {
+        ByteBuffer result = ByteBuffer.allocate(size);
+        while (result.hasRemaining()) {
+            if (channel.read(result, position + result.position()) < 0) throw new IOException("Truncated snapshot file");
+        }
+        result.flip();
+        return result;
+    }
+}
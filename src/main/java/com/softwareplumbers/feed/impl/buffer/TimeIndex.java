@@ -0,0 +1,159 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.feed.impl.buffer;
+
+import java.time.Instant;
+import java.util.Arrays;
+
+/** Append-only index of message timestamps and record offsets within a bucket.
+ *
+ * Timestamps are held as epoch nanoseconds in a primitive array, alongside parallel
+ * arrays of record offsets and record flags (see RecordFilter), and are searched
+ * with a binary search. Entries must be
+ * appended in non-decreasing timestamp order, which holds because messages are
+ * published to a buffer in the order their timestamps were issued. Several entries may share
+ * the same timestamp.
+ *
+ * There is a single writer; readers may run concurrently. The arrays are replaced
+ * (never modified in place below the current count) when the index grows, and are
+ * always published before the count which makes them visible.
+ *
+ * @author jonathan
+ */
+class TimeIndex {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static class Entries {
+        final long[] timestamps;
+        final int[] offsets;
+        final byte[] flags;
+
+        Entries(int capacity) {
+            timestamps = new long[capacity];
+            offsets = new int[capacity];
+            flags = new byte[capacity];
+        }
+
+        Entries(long[] timestamps, int[] offsets, byte[] flags) {
+            this.timestamps = timestamps;
+            this.offsets = offsets;
+            this.flags = flags;
+        }
+
+        Entries(Entries other, int capacity) {
+            timestamps = Arrays.copyOf(other.timestamps, capacity);
+            offsets = Arrays.copyOf(other.offsets, capacity);
+            flags = Arrays.copyOf(other.flags, capacity);
+        }
+    }
+
+    private volatile Entries entries;
+    private volatile int count;
+
+    TimeIndex() {
+        entries = new Entries(INITIAL_CAPACITY);
+        count = 0;
+    }
+
+    /** Create an index from existing entries.
+     *
+     * The index takes ownership of the arrays, which must be of the same length.
+     *
+     * @param timestamps Timestamps in epoch nanos, in non-decreasing order
+     * @param offsets Record offsets
+     * @param flags Record flags
+     */
+    TimeIndex(long[] timestamps, int[] offsets, byte[] flags) {
+        entries = new Entries(timestamps, offsets, flags);
+        count = timestamps.length;
+    }
+
+    /** Convert an instant to epoch nanoseconds, saturating at Long.MIN_VALUE and Long.MAX_VALUE.
+     *
+     * Saturation allows Instant.MIN and Instant.MAX to be used as search bounds.
+     *
+     * @param instant Instant to convert
+     * @return nanoseconds since the epoch
+     */
+    static long toNanos(Instant instant) {
+        long seconds = instant.getEpochSecond();
+        if (seconds >= Long.MAX_VALUE / 1000000000L) return Long.MAX_VALUE;
+        if (seconds <= Long.MIN_VALUE / 1000000000L) return Long.MIN_VALUE;
+        return seconds * 1000000000L + instant.getNano();
+    }
+
+    static Instant toInstant(long nanos) {
+        return Instant.ofEpochSecond(Math.floorDiv(nanos, 1000000000L), Math.floorMod(nanos, 1000000000L));
+    }
+
+    /** Add an entry to the index.
+     *
+     * @param timestamp Timestamp in epoch nanos, not less than the last timestamp added
+     * @param offset Offset of record in bucket
+     * @param flags Flags describing the record
+     * @return The position of the new entry in the index
+     */
+    int append(long timestamp, int offset, byte flags) {
+        int index = count;
+        Entries current = entries;
+        if (index == current.timestamps.length) {
+            current = new Entries(current, Math.max(INITIAL_CAPACITY, index * 2));
+            entries = current;
+        }
+        current.timestamps[index] = timestamp;
+        current.offsets[index] = offset;
+        current.flags[index] = flags;
+        count = index + 1;
+        return index;
+    }
+
+    /** Remove all entries.
+     *
+     * The existing arrays are retained for reuse.
+     */
+    void clear() {
+        count = 0;
+    }
+
+    int size() {
+        return count;
+    }
+
+    long getTimestamp(int index) {
+        return entries.timestamps[index];
+    }
+
+    int getOffset(int index) {
+        return entries.offsets[index];
+    }
+
+    byte getFlags(int index) {
+        return entries.flags[index];
+    }
+
+    /** Find the first entry with a timestamp greater than (or equal to) the given value.
+     *
+     * @param timestamp Timestamp in epoch nanos
+     * @param inclusive If true, find the first entry with timestamp greater than or equal to the given value
+     * @return Position of entry, or size() if there is none
+     */
+    int search(long timestamp, boolean inclusive) {
+        int low = 0;
+        int high = count;
+        long[] timestamps = entries.timestamps;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            long value = timestamps[mid];
+            if (value < timestamp || (!inclusive && value == timestamp)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -8,6 +8,9 @@ package com.softwareplumbers.feed;
 import com.softwareplumbers.feed.FeedExceptions.InvalidId;
 import com.softwareplumbers.feed.FeedExceptions.InvalidPath;
 import com.softwareplumbers.feed.FeedExceptions.InvalidState;
+import com.softwareplumbers.feed.impl.AbstractFeedService;
+import com.softwareplumbers.feed.impl.buffer.HybridClock;
+import com.softwareplumbers.feed.test.DummyFeedService;
 import com.softwareplumbers.feed.test.TestUtils;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -16,13 +19,17 @@ import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import static com.softwareplumbers.feed.test.TestUtils.*;
 import java.io.IOException;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.NavigableSet;
+import java.util.Optional;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.UUID;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
@@ -37,6 +44,7 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeThat;
 import org.junit.Test;
 import static org.mockito.Matchers.notNull;
 import org.springframework.beans.factory.annotation.Qualifier;
@@ -224,6 +232,213 @@ public class TestFeedService {
         assertThat(results.poll(100, TimeUnit.MILLISECONDS), nullValue());
     }
     
+    @Test
+    public void testFilteredCallbacks() throws Exception {
+        FeedPath feed = randomFeedPath();
+        Instant from = Instant.now();
+        CompletableFuture<MessageIterator> noAcks = service.listen(feed, from, service.getServerId(), 10000L, Filters.NO_ACKS);
+        CompletableFuture<MessageIterator> local = service.listen(feed, from, service.getServerId(), 10000L, Filters.POSTED_LOCALLY, Filters.NO_ACKS);
+        CompletableFuture<MessageIterator> acks = service.listen(feed, from, service.getServerId(), 10000L, Filters.IS_ACK);
+        CompletableFuture<MessageIterator> remote = service.listen(feed, from, service.getServerId(), 10000L, Filters.fromRemote(UUID.randomUUID()));
+        CompletableFuture<MessageIterator> rejected = service.listen(feed, from, service.getServerId(), 10000L, Filters.NO_ACKS, message->false);
+        CompletableFuture<MessageIterator> parent = service.listen(feed.parent, from, service.getServerId(), 10000L, Filters.NO_ACKS, Filters.POSTED_LOCALLY);
+        post(generateMessage(feed));
+        for (CompletableFuture<MessageIterator> result : Arrays.asList(noAcks, local, parent)) {
+            try (MessageIterator messages = result.get(5000, TimeUnit.MILLISECONDS)) {
+                assertThat(messages.toStream().map(Message::getType).collect(Collectors.toList()), contains(MessageType.NONE));
+            }
+        }
+        try (MessageIterator messages = acks.get(5000, TimeUnit.MILLISECONDS)) {
+            assertThat(messages.toStream().map(Message::getType).collect(Collectors.toList()), contains(MessageType.ACK));
+        }
+        // callbacks which did not match remain registered
+        post(generateMessage(feed));
+        Thread.sleep(100);
+        assertThat(remote.isDone(), equalTo(false));
+        assertThat(rejected.isDone(), equalTo(false));
+        remote.cancel(true);
+        rejected.cancel(true);
+    }
+    
+    @Test
+    public void testSharedCallbackResults() throws Exception {
+        FeedPath feed = randomFeedPath();
+        Instant from = Instant.now();
+        List<CompletableFuture<MessageIterator>> results = new ArrayList<>();
+        for (int i = 0; i < 20; i++) results.add(service.listen(feed, from, service.getServerId(), 10000L, Filters.NO_ACKS));
+        Message sent = post(generateMessage(feed));
+        String data = null;
+        for (CompletableFuture<MessageIterator> result : results) {
+            try (MessageIterator messages = result.get(5000, TimeUnit.MILLISECONDS)) {
+                assertThat(messages.hasNext(), equalTo(true));
+                Message received = messages.next();
+                assertThat(received.getName(), equalTo(sent.getName()));
+                // every listener can read the message data
+                String receivedData = asString(received.getData());
+                if (data == null) data = receivedData;
+                assertThat(receivedData, equalTo(data));
+                assertThat(messages.hasNext(), equalTo(false));
+            }
+        }
+    }
+    
+    @Test
+    public void testSubscription() throws Exception {
+        BlockingQueue<Message> received = new ArrayBlockingQueue<>(10);
+        CountDownLatch completed = new CountDownLatch(1);
+        MessageSubscription[] subscription = new MessageSubscription[1];
+        MessageSubscriber subscriber = new MessageSubscriber() {
+            @Override
+            public void onSubscribe(MessageSubscription s) { subscription[0] = s; }
+            @Override
+            public void onNext(Message message) { received.add(message); }
+            @Override
+            public void onError(Throwable error) { }
+            @Override
+            public void onComplete() { completed.countDown(); }
+        };
+        FeedPath path = randomFeedPath();
+        try (FeedService subscribed = new DummyFeedService(UUID.randomUUID(), 100000, 2000)) {
+            Message first = subscribed.post(path, generateMessage(path));
+            subscribed.subscribe(path.parent, subscribed.getInitTime(), subscribed.getServerId(), subscriber, Filters.NO_ACKS);
+            assertThat(subscription[0], notNullValue());
+            // nothing is delivered until there is demand
+            assertThat(received.poll(100, TimeUnit.MILLISECONDS), nullValue());
+            subscription[0].request(2);
+            assertThat(received.poll(5, TimeUnit.SECONDS).getName(), equalTo(first.getName()));
+            Message second = subscribed.post(path, generateMessage(path));
+            Message third = subscribed.post(path, generateMessage(path));
+            assertThat(received.poll(5, TimeUnit.SECONDS).getName(), equalTo(second.getName()));
+            assertThat(received.poll(100, TimeUnit.MILLISECONDS), nullValue());
+            subscription[0].request(10);
+            assertThat(received.poll(5, TimeUnit.SECONDS).getName(), equalTo(third.getName()));
+            Message fourth = subscribed.post(path, generateMessage(path));
+            assertThat(received.poll(5, TimeUnit.SECONDS).getName(), equalTo(fourth.getName()));
+        }
+        assertThat(completed.await(5, TimeUnit.SECONDS), equalTo(true));
+        assertThat(received.isEmpty(), equalTo(true));
+    }
+    
+    @Test
+    public void testSubscriptionOneAtATime() throws Exception {
+        BlockingQueue<Message> received = new ArrayBlockingQueue<>(10);
+        MessageSubscription[] subscription = new MessageSubscription[1];
+        MessageSubscriber subscriber = new MessageSubscriber() {
+            @Override
+            public void onSubscribe(MessageSubscription s) { subscription[0] = s; }
+            @Override
+            public void onNext(Message message) { received.add(message); }
+            @Override
+            public void onError(Throwable error) { }
+            @Override
+            public void onComplete() { }
+        };
+        FeedPath path = randomFeedPath();
+        try (FeedService subscribed = new DummyFeedService(UUID.randomUUID(), 100000, 2000)) {
+            // Each post stores the message and its acknowledgement with the same timestamp
+            Message first = subscribed.post(path, generateMessage(path));
+            Message second = subscribed.post(path, generateMessage(path));
+            subscribed.subscribe(path.parent, subscribed.getInitTime(), subscribed.getServerId(), subscriber);
+            List<Message> delivered = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                subscription[0].request(1);
+                Message message = received.poll(5, TimeUnit.SECONDS);
+                assertThat(message, notNullValue());
+                delivered.add(message);
+                assertThat(received.poll(100, TimeUnit.MILLISECONDS), nullValue());
+            }
+            assertThat(delivered.stream().map(message->message.getType() == MessageType.ACK).collect(Collectors.toList()), contains(false, true, false, true));
+            assertThat(delivered.stream().map(Message::getName).collect(Collectors.toList()), contains(first.getName(), first.getName(), second.getName(), second.getName()));
+        }
+    }
+    
+    @Test
+    public void testSubscriptionFallsBehind() throws Exception {
+        BlockingQueue<Message> received = new ArrayBlockingQueue<>(10);
+        MessageSubscription[] subscription = new MessageSubscription[1];
+        MessageSubscriber subscriber = new MessageSubscriber() {
+            @Override
+            public void onSubscribe(MessageSubscription s) { subscription[0] = s; }
+            @Override
+            public void onNext(Message message) { received.add(message); }
+            @Override
+            public void onError(Throwable error) { }
+            @Override
+            public void onComplete() { }
+        };
+        FeedPath path = randomFeedPath();
+        try (FeedService subscribed = new DummyFeedService(UUID.randomUUID(), 100000, 2000)) {
+            subscribed.subscribe(path.parent, subscribed.getInitTime(), subscribed.getServerId(), subscriber);
+            // Catch up with the empty feed, then run out of demand part way through the signalled messages
+            subscription[0].request(3);
+            assertThat(received.poll(100, TimeUnit.MILLISECONDS), nullValue());
+            Message first = subscribed.post(path, generateMessage(path));
+            Message second = subscribed.post(path, generateMessage(path));
+            List<FeedPath> names = new ArrayList<>();
+            for (int i = 0; i < 3; i++) names.add(received.poll(5, TimeUnit.SECONDS).getName());
+            assertThat(received.poll(100, TimeUnit.MILLISECONDS), nullValue());
+            // A message stored with no demand leaves the subscription behind, so it searches again
+            Message third = subscribed.post(path, generateMessage(path));
+            subscription[0].request(10);
+            for (int i = 0; i < 3; i++) names.add(received.poll(5, TimeUnit.SECONDS).getName());
+            // Caught up again
+            Message fourth = subscribed.post(path, generateMessage(path));
+            for (int i = 0; i < 2; i++) names.add(received.poll(5, TimeUnit.SECONDS).getName());
+            assertThat(received.poll(100, TimeUnit.MILLISECONDS), nullValue());
+            assertThat(names, contains(first.getName(), first.getName(), second.getName(), second.getName(), third.getName(), third.getName(), fourth.getName(), fourth.getName()));
+        }
+    }
+    
+    @Test
+    public void testSubscriptionFailure() throws Exception {
+        BlockingQueue<Object> signals = new ArrayBlockingQueue<>(10);
+        MessageSubscription[] subscription = new MessageSubscription[1];
+        MessageSubscriber subscriber = new MessageSubscriber() {
+            @Override
+            public void onSubscribe(MessageSubscription s) { subscription[0] = s; }
+            @Override
+            public void onNext(Message message) { signals.add(message); }
+            @Override
+            public void onError(Throwable error) { signals.add(error); }
+            @Override
+            public void onComplete() { signals.add("complete"); }
+        };
+        FeedPath path = randomFeedPath();
+        try (FeedService subscribed = new DummyFeedService(UUID.randomUUID(), 100000, 2000)) {
+            subscribed.post(path, generateMessage(path));
+            subscribed.subscribe(path.parent, subscribed.getInitTime(), subscribed.getServerId(), subscriber, Filters.NO_ACKS);
+            subscription[0].request(1);
+            assertThat(signals.poll(5, TimeUnit.SECONDS), instanceOf(Message.class));
+            subscription[0].request(0);
+            assertThat(signals.poll(5, TimeUnit.SECONDS), instanceOf(IllegalArgumentException.class));
+            subscription[0].request(-1);
+        }
+        // closing the service does not signal a failed subscription again
+        assertThat(signals.poll(100, TimeUnit.MILLISECONDS), nullValue());
+    }
+    
+    @Test
+    public void testSearchByHybridTimestamp() throws Exception {
+        UUID remote = UUID.randomUUID();
+        try (FeedService hybrid = new DummyFeedService(UUID.randomUUID(), new HybridClock(), 100000, 2000)) {
+            FeedPath path = randomFeedPath();
+            // Remote clock is well ahead of the local clock
+            Instant remoteTime = Instant.now().plusSeconds(3600);
+            Message replicated = generateMessage(path).setServerId(remote).setTimestamp(remoteTime);
+            Message ack = hybrid.replicate(replicated);
+            assertThat(ack.getTimestamp(), greaterThan(remoteTime));
+            Message posted = hybrid.post(path, generateMessage(path));
+            assertThat(posted.getTimestamp(), greaterThan(ack.getTimestamp()));
+            
+            try (MessageIterator results = hybrid.search(path, remote, remoteTime.minusNanos(1), false, Optional.empty(), Optional.empty(), Optional.of(false), Filters.NO_ACKS)) {
+                assertThat(results.toStream().map(Message::getName).collect(Collectors.toList()), contains(replicated.getName(), posted.getName()));
+            }
+            try (MessageIterator results = hybrid.search(path, remote, remoteTime, false, Optional.empty(), Optional.empty(), Optional.of(false), Filters.NO_ACKS)) {
+                assertThat(results.toStream().map(Message::getName).collect(Collectors.toList()), contains(posted.getName()));
+            }
+        }
+    }
+    
     @Test
     public void testMessagesForFeed() throws InterruptedException, ExecutionException, TimeoutException {
         //more of a test-of-test fixture 
@@ -267,6 +482,64 @@ public class TestFeedService {
     }
     
     
+    @Test
+    public void testMessageRoundtripBatchedPosts() throws IOException, InvalidPath, InterruptedException, ExecutionException {
+        // batching is an implementation feature, not part of the FeedService contract
+        assumeThat(service, instanceOf(AbstractFeedService.class));
+        ((AbstractFeedService)service).setPostBatching(16, 2);
+
+        Instant start = service.getLastTimestamp(FeedPath.ROOT).orElseGet(()->service.getInitTime());
+
+        final int SEND_COUNT = env.getProperty("test.TestFeedService.testMessageRoundtripMultipleThreads.SEND_COUNT", Integer.class);
+        final int THREADS = 8;
+
+        CompletableFuture<Stream<Message>> sentMessages = generateMessages(THREADS, SEND_COUNT, 0, getFeeds(), this::post);
+        List<FeedPath> feeds = getFeeds();
+        try {
+            List<Receiver> receivers = createReceivers(THREADS, service, feeds, start, SEND_COUNT * THREADS / feeds.size()).get(getTimeout(), TimeUnit.SECONDS);
+            List<Message> sentList = sentMessages.get().collect(Collectors.toList());
+            // every poster receives its own acknowledgement
+            assertThat(sentList.stream().map(Message::getName).distinct().count(), equalTo((long)sentList.size()));
+            for (Receiver results : receivers) {
+                TestUtils.assertMatch(sentList.stream().filter(m->m.getFeedName().equals(results.feed)), results.messages);
+            }
+        } catch(TimeoutException exp) {
+            dumpThreads();
+            fail("timed out");
+        }
+    }
+
+    @Test
+    public void testListenBatching() throws Exception {
+        assumeThat(service, instanceOf(AbstractFeedService.class));
+        ((AbstractFeedService)service).setListenBatching(3, 500);
+        FeedPath path = randomFeedPath();
+        Instant from = Instant.now();
+        CompletableFuture<MessageIterator> batch = service.listen(path, from, service.getServerId(), 10000L, Filters.NO_ACKS);
+        Message first = post(generateMessage(path));
+        Thread.sleep(100);
+        assertThat(batch.isDone(), equalTo(false));
+        post(generateMessage(path));
+        Message last = post(generateMessage(path));
+        try (MessageIterator messages = batch.get(5000, TimeUnit.MILLISECONDS)) {
+            assertThat(messages.toStream().count(), equalTo(3L));
+        }
+        // a partial batch is returned once the linger time has passed
+        long start = System.currentTimeMillis();
+        CompletableFuture<MessageIterator> partial = service.listen(path, last.getTimestamp(), service.getServerId(), 10000L, Filters.NO_ACKS);
+        Message single = post(generateMessage(path));
+        try (MessageIterator messages = partial.get(5000, TimeUnit.MILLISECONDS)) {
+            assertThat(messages.toStream().map(Message::getName).collect(Collectors.toList()), contains(single.getName()));
+        }
+        assertThat(System.currentTimeMillis() - start, greaterThanOrEqualTo(500L));
+        // messages already available count towards the batch
+        CompletableFuture<MessageIterator> available = service.listen(path, from, service.getServerId(), 10000L, Filters.NO_ACKS);
+        assertThat(available.isDone(), equalTo(true));
+        try (MessageIterator messages = available.get()) {
+            assertThat(messages.toStream().map(Message::getName).findFirst(), equalTo(Optional.of(first.getName())));
+        }
+    }
+
     @Test
     public void testListenerTimeout() throws IOException, InvalidPath, InterruptedException, ExecutionException, TimeoutException {
         FeedPath path = randomFeedPath();
@@ -8,11 +8,21 @@ package com.softwareplumbers.feed;
 import com.softwareplumbers.feed.impl.buffer.MessageBuffer;
 import com.softwareplumbers.feed.impl.MessageImpl;
 import com.softwareplumbers.feed.impl.buffer.BufferPool;
+import com.softwareplumbers.feed.impl.buffer.BucketSizing;
+import com.softwareplumbers.feed.impl.buffer.BufferedMessageImpl;
+import com.softwareplumbers.feed.impl.buffer.EvictionPolicy;
+import com.softwareplumbers.feed.impl.buffer.Journal;
+import com.softwareplumbers.feed.impl.buffer.QuotaEvictionPolicy;
+import com.softwareplumbers.feed.impl.buffer.RetentionPolicy;
+import com.softwareplumbers.feed.impl.buffer.HybridClock;
 import com.softwareplumbers.feed.impl.buffer.MessageClock;
 import com.softwareplumbers.feed.test.TestUtils;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.time.Clock;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.List;
 import java.util.Map;
@@ -28,6 +38,12 @@ import static org.junit.Assert.fail;
 
 import static com.softwareplumbers.feed.test.TestUtils.*;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Optional;
@@ -35,6 +51,8 @@ import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeoutException;
 import java.util.stream.Stream;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -110,7 +128,38 @@ public class TestMessageBuffer {
         assertEquals(message, after);
         assertThat(asString(after.getData()), equalTo(asString(message.getData())));
     }
-    
+
+    @Test
+    public void testHeaderRecordRoundtrip() throws IOException {
+        BufferPool pool = new BufferPool(100000);
+        MessageBuffer testBuffer = pool.createBuffer(new MessageClock(), 1024);
+        JsonObject testHeaders = Json.createObjectBuilder().add("field1", "one").add("field2", 2).build();
+        Message.RemoteInfo remoteInfo = new Message.RemoteInfo(UUID.randomUUID(), Instant.now().minusSeconds(5));
+        Message message = new MessageImpl(MessageType.valueOf("TEST"), randomFeedPath().addId("abc"), "testuser", null, Optional.of(UUID.randomUUID()), Optional.of(remoteInfo), testHeaders, new ByteArrayInputStream("abc123".getBytes()), -1, false);
+        Message stored = testBuffer.addMessage(message);
+        Message plain = testBuffer.addMessage(message.setSender(null).setRemoteInfo(remoteInfo).setType(MessageType.NONE).setName(randomFeedPath().addId("def")));
+        Message after = testBuffer.getMessages(stored.getId()).toStream().findAny().orElseThrow(()->new RuntimeException("no message"));
+        assertThat(after.getType(), equalTo(MessageType.valueOf("TEST")));
+        assertThat(after.getTimestamp(), equalTo(stored.getTimestamp()));
+        assertThat(after.getServerId(), equalTo(message.getServerId()));
+        assertThat(after.getSender(), equalTo("testuser"));
+        assertThat(after.getRemoteInfo(), equalTo(Optional.of(remoteInfo)));
+        assertThat(after.getLength(), equalTo(6L));
+        assertThat(after.getHeaders(), equalTo(testHeaders));
+        assertEquals(message, after);
+        // headers read from a buffered message are still JSON
+        JsonObject json = Json.createReader(after.getHeaderStream()).readObject();
+        assertThat(json.getString("type"), equalTo("TEST"));
+        assertThat(json.getString("timestamp"), equalTo(stored.getTimestamp().toString()));
+        assertThat(json.getJsonObject("headers"), equalTo(testHeaders));
+        Message afterPlain = testBuffer.getMessages(plain.getId()).toStream().findAny().orElseThrow(()->new RuntimeException("no message"));
+        assertThat(afterPlain.getType(), equalTo(MessageType.NONE));
+        assertThat(afterPlain.getSender(), nullValue());
+        Message copy = pool.createBuffer(new MessageClock(), 1024).addMessage(after);
+        assertEquals(after, copy);
+        assertThat(copy.getRemoteInfo(), equalTo(Optional.of(remoteInfo)));
+    }
+
     @Test
     public void testMultipleGet() throws IOException, InterruptedException {
         int count = 80;
@@ -161,6 +210,636 @@ public class TestMessageBuffer {
         assertThat(result.size(), lessThan(40));
     }
     
+    @Test
+    public void testOffHeapPool() throws IOException, InterruptedException {
+        int messageSize = getAverageMessageSize();
+        BufferPool pool = new BufferPool(messageSize * 5, true);
+        MessageBuffer buffer = pool.createBuffer(new MessageClock(), 1024);
+        Instant first = Instant.now();
+        Thread.sleep(100);
+        Map<FeedPath,Message> messages = generateMessages(40, 2, randomFeedPath(), message->buffer.addMessage(message.setServerId(UUID.randomUUID()))).collect(Collectors.toMap(m->m.getName(), m->m));
+        assertThat(pool.getOffHeapSize(), equalTo(pool.getSize()));
+        List<Message> result = buffer.getMessagesAfter(first).toStream().collect(Collectors.toList());
+        assertEquals(40, result.size());
+        for (Message received : result) {
+            Message sent = messages.get(received.getName());
+            assertThat(sent.getHeaders(), equalTo(received.getHeaders()));
+            assertThat(asString(received.getData()), equalTo(asString(sent.getData())));
+        }
+        pool.deallocateBuckets();
+        assertThat(pool.getOffHeapSize(), equalTo(pool.getSize()));
+        assertThat(pool.getSize(), lessThanOrEqualTo(messageSize * 20L));
+    }
+    
+    @Test
+    public void testGetMessagesById() throws IOException {
+        int messageSize = getAverageMessageSize();
+        BufferPool pool = new BufferPool(messageSize * 5);
+        MessageBuffer buffer = pool.createBuffer(new MessageClock(), 1024);
+        List<Message> messages = generateMessages(40, 2, randomFeedPath(), message->buffer.addMessage(message.setServerId(UUID.randomUUID()))).collect(Collectors.toList());
+        for (Message message : messages) {
+            List<Message> found = buffer.getMessages(message.getId()).toStream().collect(Collectors.toList());
+            assertThat(found, hasSize(1));
+            assertThat(found.get(0).getName(), equalTo(message.getName()));
+        }
+        Message ack = buffer.addMessage(MessageImpl.acknowledgement(messages.get(0)).setServerId(UUID.randomUUID()));
+        assertThat(buffer.getMessages(ack.getId()).toStream().count(), equalTo(2L));
+        pool.deallocateBuckets();
+        Instant first = buffer.firstTimestamp().orElseThrow(()->new RuntimeException("empty buffer"));
+        for (Message message : messages) {
+            long expected = message.getTimestamp().isBefore(first) ? 0 : 1;
+            assertThat(buffer.getMessages(message.getId(), m->m.getType() != MessageType.ACK).toStream().count(), equalTo(expected));
+        }
+        assertThat(buffer.getMessages(ack.getId(), m->m.getType() == MessageType.ACK).toStream().count(), equalTo(1L));
+    }
+
+    @Test
+    public void testIndexedFilters() throws IOException {
+        BufferPool pool = new BufferPool(100000000);
+        MessageBuffer buffer = pool.createBuffer(new MessageClock(), 1024);
+        UUID localId = UUID.randomUUID();
+        UUID remoteA = UUID.randomUUID();
+        UUID remoteB = UUID.randomUUID();
+        Instant first = buffer.checkpoint();
+        List<Message> local = generateMessages(20, 0, randomFeedPath(), message->buffer.addMessage(message.setServerId(localId))).collect(Collectors.toList());
+        for (Message message : local) buffer.addMessage(MessageImpl.acknowledgement(message).setServerId(localId));
+        generateMessages(10, 0, randomFeedPath(), message->buffer.addMessage(message.setServerId(localId).setRemoteInfo(new Message.RemoteInfo(remoteA, Instant.now())))).count();
+        generateMessages(5, 0, randomFeedPath(), message->buffer.addMessage(message.setServerId(localId).setRemoteInfo(new Message.RemoteInfo(remoteB, Instant.now())))).count();
+        Instant last = buffer.checkpoint();
+        assertThat(buffer.getMessagesBetween(first, false, last, true).toStream().count(), equalTo(55L));
+        assertThat(buffer.getMessagesBetween(first, false, last, true, Filters.NO_ACKS).toStream().count(), equalTo(35L));
+        assertThat(buffer.getMessagesBetween(first, false, last, true, Filters.IS_ACK).toStream().count(), equalTo(20L));
+        assertThat(buffer.getMessagesBetween(first, false, last, true, Filters.NO_ACKS, Filters.POSTED_LOCALLY).toStream().count(), equalTo(20L));
+        assertThat(buffer.getMessagesBetween(first, false, last, true, Filters.fromRemote(remoteA)).toStream().count(), equalTo(10L));
+        assertThat(buffer.getMessagesAfter(first, Filters.fromRemote(remoteB)).toStream().count(), equalTo(5L));
+        assertThat(buffer.getMessagesAfter(first, Filters.fromRemote(remoteA), Filters.fromRemote(remoteB)).toStream().count(), equalTo(0L));
+        assertThat(buffer.getMessagesAfter(first, Filters.IS_ACK, Filters.NO_ACKS).toStream().count(), equalTo(0L));
+        Message target = local.get(3);
+        assertThat(buffer.getMessagesAfter(first, Filters.NO_ACKS, m->m.getId().equals(target.getId())).toStream().collect(Collectors.toList()), contains(target));
+        assertThat(buffer.getMessages(target.getId(), Filters.IS_ACK).toStream().count(), equalTo(1L));
+    }
+
+    @Test
+    public void testQuotaEviction() throws IOException, InterruptedException {
+        int messageSize = getAverageMessageSize();
+        BufferPool pool = new BufferPool(messageSize * 5);
+        pool.setEvictionPolicy(new QuotaEvictionPolicy().setQuota("quiet", messageSize * 1000, Long.MAX_VALUE));
+        MessageBuffer quiet = pool.createBuffer(new MessageClock(), 1024, "quiet");
+        MessageBuffer busy = pool.createBuffer(new MessageClock(), 1024, "busy");
+        Instant first = Instant.now();
+        Thread.sleep(10);
+        generateMessages(10, 2, randomFeedPath(), message->quiet.addMessage(message.setServerId(UUID.randomUUID()))).count();
+        generateMessages(40, 2, randomFeedPath(), message->busy.addMessage(message.setServerId(UUID.randomUUID()))).count();
+        long quietSize = quiet.getSize();
+        assertThat(quiet.getSize() + busy.getSize(), equalTo(pool.getSize()));
+        pool.deallocateBuckets();
+        assertThat(quiet.getSize(), equalTo(quietSize));
+        assertThat(quiet.getMessagesAfter(first).toStream().count(), equalTo(10L));
+        assertThat(busy.getMessagesAfter(first).toStream().count(), lessThan(40L));
+        assertThat(quiet.getSize() + busy.getSize(), equalTo(pool.getSize()));
+    }
+    
+    @Test
+    public void testTtlEviction() throws IOException, InterruptedException {
+        BufferPool pool = new BufferPool(100000);
+        MessageClock clock = new MessageClock();
+        pool.setEvictionPolicy(EvictionPolicy.ttl(clock, Duration.ofSeconds(60)).or(EvictionPolicy.FIFO));
+        MessageBuffer buffer = pool.createBuffer(clock, 1024);
+        Instant first = Instant.now();
+        Thread.sleep(10);
+        generateMessages(40, 2, randomFeedPath(), message->buffer.addMessage(message.setServerId(UUID.randomUUID()))).count();
+        pool.deallocateBuckets();
+        assertThat(buffer.getMessagesAfter(first).toStream().count(), equalTo(40L));
+        long size = pool.getSize();
+        // move the eviction clock forward so that all messages have expired
+        pool.setEvictionPolicy(EvictionPolicy.ttl(Clock.offset(clock, Duration.ofSeconds(120)), Duration.ofSeconds(60)).or(EvictionPolicy.FIFO));
+        pool.deallocateBuckets();
+        // only the current bucket should remain
+        assertThat(pool.getSize(), lessThan(size));
+        assertThat(buffer.getMessagesAfter(first).toStream().count(), lessThan(40L));
+    }
+    
+    @Test
+    public void testRetentionPolicy() throws IOException, InterruptedException {
+        BufferPool pool = new BufferPool(1000000);
+        MessageClock clock = new MessageClock();
+        // the eviction clock runs two minutes ahead, so all messages are two minutes old
+        pool.setEvictionPolicy(new RetentionPolicy(Clock.offset(clock, Duration.ofSeconds(120)))
+            .setRetention(FeedPath.ROOT.add("aged"), Duration.ofSeconds(60), Long.MAX_VALUE, Long.MAX_VALUE)
+            .setRetention(FeedPath.ROOT.add("counted"), null, Long.MAX_VALUE, 10)
+            .setRetention(FeedPath.ROOT.add("counted").add("kept"), Duration.ofSeconds(600), Long.MAX_VALUE, Long.MAX_VALUE));
+        MessageBuffer aged = pool.createBuffer(clock, 1024, "aged/a");
+        MessageBuffer counted = pool.createBuffer(clock, 1024, "counted/b");
+        MessageBuffer kept = pool.createBuffer(clock, 1024, "counted/kept/c");
+        MessageBuffer unlimited = pool.createBuffer(clock, 1024, "other");
+        Instant first = Instant.now();
+        Thread.sleep(10);
+        for (MessageBuffer buffer : new MessageBuffer[] { aged, counted, kept, unlimited })
+            generateMessages(40, 2, randomFeedPath(), message->buffer.addMessage(message.setServerId(UUID.randomUUID()))).count();
+        assertThat(counted.getMessageCount(), equalTo(40L));
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            pool.setSweeper(executor, 10);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (counted.getMessageCount() == 40 || aged.getMessageCount() == 40) {
+                assertThat(System.currentTimeMillis(), lessThan(deadline));
+                Thread.sleep(10);
+            }
+            pool.setSweeper(null, 0);
+        } finally {
+            executor.shutdown();
+        }
+        // a sweep may still be running
+        assertThat(executor.awaitTermination(5, TimeUnit.SECONDS), equalTo(true));
+        assertThat(aged.getMessagesAfter(first).toStream().count(), lessThan(40L));
+        assertThat(counted.getMessagesAfter(first).toStream().count(), equalTo(counted.getMessageCount()));
+        assertThat(counted.getMessageCount(), lessThan(40L));
+        assertThat(counted.getMessageCount(), greaterThanOrEqualTo(10L));
+        assertThat(kept.getMessagesAfter(first).toStream().count(), equalTo(40L));
+        assertThat(unlimited.getMessagesAfter(first).toStream().count(), equalTo(40L));
+        assertThat(aged.getSize() + counted.getSize() + kept.getSize() + unlimited.getSize(), equalTo(pool.getSize()));
+    }
+    
+    @Test
+    public void testBucketRecycling() throws IOException, InterruptedException {
+        int messageSize = getAverageMessageSize();
+        BufferPool pool = new BufferPool(messageSize * 5);
+        pool.setMaxFreeSize(messageSize * 40L);
+        MessageBuffer buffer = pool.createBuffer(new MessageClock(), 1024);
+        generateMessages(40, 2, randomFeedPath(), message->buffer.addMessage(message.setServerId(UUID.randomUUID()))).count();
+        assertThat(pool.getFreeListHits(), equalTo(0L));
+        pool.deallocateBuckets();
+        assertThat(pool.getFreeSize(), greaterThan(0L));
+        Instant next = buffer.now();
+        Thread.sleep(10);
+        Map<FeedPath,Message> messages = generateMessages(40, 2, randomFeedPath(), message->buffer.addMessage(message.setServerId(UUID.randomUUID()))).collect(Collectors.toMap(m->m.getName(), m->m));
+        assertThat(pool.getFreeListHits(), greaterThan(0L));
+        List<Message> result = buffer.getMessagesAfter(next).toStream().collect(Collectors.toList());
+        assertEquals(40, result.size());
+        for (Message received : result) {
+            Message sent = messages.get(received.getName());
+            assertThat(sent.getHeaders(), equalTo(received.getHeaders()));
+            assertThat(asString(received.getData()), equalTo(asString(sent.getData())));
+        }
+    }
+
+    @Test
+    public void testBucketCompression() throws IOException, InterruptedException {
+        BufferPool plain = new BufferPool(100000000);
+        BufferPool compressed = new BufferPool(100000000);
+        compressed.setCompression(Runnable::run);
+        MessageBuffer plainBuffer = plain.createBuffer(new MessageClock(), 1024);
+        MessageBuffer buffer = compressed.createBuffer(new MessageClock(), 1024);
+        Instant first = buffer.now();
+        Thread.sleep(10);
+        Map<FeedPath,Message> messages = generateMessages(80, 0, randomFeedPath(), message->{
+            plainBuffer.addMessage(message.setServerId(UUID.randomUUID()));
+            return buffer.addMessage(message.setServerId(UUID.randomUUID()));
+        }).collect(Collectors.toMap(m->m.getName(), m->m));
+        assertThat(compressed.getCompressionSavings(), greaterThan(0L));
+        assertThat(compressed.getSize(), lessThan(plain.getSize()));
+        assertThat(buffer.getSize(), equalTo(compressed.getSize()));
+        List<Message> result = buffer.getMessagesAfter(first).toStream().collect(Collectors.toList());
+        assertEquals(80, result.size());
+        for (Message received : result) {
+            Message sent = messages.get(received.getName());
+            assertThat(sent.getHeaders(), equalTo(received.getHeaders()));
+            assertThat(asString(received.getData()), equalTo(asString(sent.getData())));
+            assertThat(buffer.getMessages(received.getId()).toStream().count(), equalTo(1L));
+        }
+        // evict everything except the current bucket
+        long size = compressed.getSize();
+        compressed.setEvictionPolicy((candidates, pool) -> candidates.findFirst());
+        compressed.deallocateBuckets();
+        assertThat(compressed.getSize(), lessThan(size));
+        assertThat(buffer.getSize(), equalTo(compressed.getSize()));
+        assertThat(compressed.getOffHeapSize(), equalTo(0L));
+    }
+
+    private static long addLargeMessages(BufferPool pool) throws IOException {
+        MessageBuffer buffer = pool.createBuffer(new MessageClock(), 1024);
+        Instant first = buffer.checkpoint();
+        byte[] large = new byte[100000];
+        for (int i = 0; i < large.length; i++) large[i] = (byte)i;
+        List<Message> sent = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            generateMessages(10, 0, randomFeedPath(), message->buffer.addMessage(message.setServerId(UUID.randomUUID()))).forEach(sent::add);
+            sent.add(buffer.addMessage(generateMessage(randomFeedPath()).setServerId(UUID.randomUUID()).setData(()->new ByteArrayInputStream(large), large.length)));
+        }
+        List<Message> result = buffer.getMessagesAfter(first).toStream().collect(Collectors.toList());
+        assertThat(result, hasSize(sent.size()));
+        for (int i = 0; i < sent.size(); i++) {
+            assertEquals(sent.get(i), result.get(i));
+            assertThat(result.get(i).getLength(), equalTo(sent.get(i).getLength()));
+            assertThat(asString(result.get(i).getData()), equalTo(asString(sent.get(i).getData())));
+        }
+        assertThat(buffer.getSize(), equalTo(pool.getSize()));
+        return pool.getSize() - pool.getLargeMessageSize();
+    }
+
+    @Test
+    public void testLargeMessageStorage() throws IOException {
+        long inline = addLargeMessages(new BufferPool(100000000));
+        BufferPool offHeap = new BufferPool(100000000);
+        offHeap.setLargeMessageStorage(1000);
+        long outOfLine = addLargeMessages(offHeap);
+        assertThat(offHeap.getLargeMessageSize(), equalTo(500000L));
+        // buckets no longer grow to fit the large messages
+        assertThat(outOfLine * 10, lessThan(inline));
+        BufferPool files = new BufferPool(100000000);
+        Path directory = Files.createTempDirectory("TestMessageBuffer");
+        files.setLargeMessageStorage(1000, directory);
+        addLargeMessages(files);
+        assertThat(files.getLargeMessageSize(), equalTo(500000L));
+        try (Stream<Path> blobs = Files.list(directory)) {
+            assertThat(blobs.count(), equalTo(5L));
+        }
+        // evict everything except the current bucket; blobs are released with their buckets
+        files.setEvictionPolicy((candidates, pool) -> candidates.findFirst());
+        files.deallocateBuckets();
+        assertThat(files.getLargeMessageSize(), lessThan(500000L));
+        try (Stream<Path> blobs = Files.list(directory)) {
+            assertThat(blobs.count(), equalTo(files.getLargeMessageSize() / 100000));
+        }
+    }
+
+    @Test
+    public void testAdaptiveBucketSizing() throws IOException {
+        BufferPool fixed = new BufferPool(100000000);
+        BufferPool adaptive = new BufferPool(100000000);
+        adaptive.setBucketSizing(new BucketSizing(Duration.ofMinutes(1), 8, 1024, 1024 * 1024));
+        MessageBuffer fixedBuffer = fixed.createBuffer(new MessageClock(), 1024);
+        MessageBuffer adaptiveBuffer = adaptive.createBuffer(new MessageClock(), 1024);
+        Instant first = adaptiveBuffer.checkpoint();
+        generateMessages(2000, 0, randomFeedPath(), message->{
+            fixedBuffer.addMessage(message.setServerId(UUID.randomUUID()));
+            return adaptiveBuffer.addMessage(message.setServerId(UUID.randomUUID()));
+        }).count();
+        assertThat(adaptiveBuffer.getMessagesAfter(first).toStream().count(), equalTo(2000L));
+        // a busy buffer quickly moves to larger buckets, so needs far fewer of them
+        assertThat(adaptive.getFreeListMisses() * 10, lessThan(fixed.getFreeListMisses()));
+    }
+
+    @Test
+    public void testConcurrentAppend() throws InterruptedException, ExecutionException {
+        BufferPool pool = new BufferPool(100000000);
+        MessageBuffer buffer = pool.createBuffer(new MessageClock(), 4096);
+        Instant start = buffer.checkpoint();
+        List<Message> sent = generateMessages(8, 200, 0, getFeeds(), message->buffer.addMessage(message.setServerId(UUID.randomUUID())))
+            .get()
+            .collect(Collectors.toList());
+        Instant end = buffer.checkpoint();
+        List<Message> received = buffer.getMessagesBetween(start, false, end, true).toStream().collect(Collectors.toList());
+        assertMatch(sent.stream(), received.stream());
+        for (int i = 1; i < received.size(); i++) {
+            assertThat(received.get(i).getTimestamp(), greaterThan(received.get(i-1).getTimestamp()));
+        }
+    }
+
+    @Test
+    public void testSlowMessageDoesNotBlockAppends() throws Exception {
+        BufferPool pool = new BufferPool(100000000);
+        MessageBuffer buffer = pool.createBuffer(new MessageClock(), 4096);
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        byte[] data = "slow data".getBytes();
+        InputStream slowStream = new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] bytes, int offset, int length) {
+                reading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return super.read(bytes, offset, length);
+            }
+        };
+        Message slowMessage = generateMessage(randomFeedPath()).setServerId(UUID.randomUUID()).setData(()->slowStream, data.length);
+        CompletableFuture<Message> slow = CompletableFuture.supplyAsync(()->buffer.addMessage(slowMessage));
+        try {
+            assertThat(reading.await(5, TimeUnit.SECONDS), equalTo(true));
+            // the slow append has not yet taken a ticket, so cannot hold this one up
+            Message fast = CompletableFuture.supplyAsync(()->buffer.addMessage(generateMessage(randomFeedPath()).setServerId(UUID.randomUUID())))
+                .get(5, TimeUnit.SECONDS);
+            release.countDown();
+            Message added = slow.get(5, TimeUnit.SECONDS);
+            assertThat(added.getTimestamp(), greaterThan(fast.getTimestamp()));
+            assertThat(buffer.lastTimestamp(), equalTo(Optional.of(added.getTimestamp())));
+            assertThat(asString(buffer.getMessages(added.getId()).toStream().findFirst().get().getData()), equalTo("slow data"));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testZeroCopyRead() throws IOException, FeedExceptions.StreamingException {
+        BufferPool pool = new BufferPool(100000, true);
+        MessageBuffer buffer = pool.createBuffer(new MessageClock(), 1024);
+        Message sent = generateMessage(randomFeedPath()).setServerId(UUID.randomUUID());
+        String data = asString(sent.getData());
+        Message stored = buffer.addMessage(sent);
+        assertThat(stored, instanceOf(BufferedMessageImpl.class));
+        BufferedMessageImpl buffered = (BufferedMessageImpl)stored;
+        ByteBuffer view = buffered.getDataBuffer().orElseThrow(()->new RuntimeException("no data buffer"));
+        assertThat(view.isReadOnly(), equalTo(true));
+        byte[] viewed = new byte[view.remaining()];
+        view.get(viewed);
+        assertThat(new String(viewed), equalTo(data));
+        ByteArrayOutputStream transferred = new ByteArrayOutputStream();
+        assertThat(buffered.transferData(Channels.newChannel(transferred)), equalTo((long)viewed.length));
+        assertThat(transferred.toString(), equalTo(data));
+        byte[] read = new byte[viewed.length + 10];
+        try (InputStream is = buffered.getData()) {
+            assertThat(is.read(read, 0, read.length), equalTo(viewed.length));
+            assertThat(is.read(), equalTo(-1));
+        }
+        assertThat(new String(read, 0, viewed.length), equalTo(data));
+        assertThat(buffered.getHeaders(), equalTo(sent.getHeaders()));
+    }
+    
+    @Test
+    public void testMappedPoolRecovery() throws IOException, InterruptedException {
+        int messageSize = getAverageMessageSize();
+        Path directory = Files.createTempDirectory("TestMessageBuffer");
+        MessageClock clock = new MessageClock();
+        BufferPool pool = new BufferPool(messageSize * 5, directory);
+        MessageBuffer buffer = pool.createBuffer(clock, 1024, "test");
+        Instant first = Instant.now();
+        Thread.sleep(100);
+        Map<FeedPath,Message> messages = generateMessages(40, 2, randomFeedPath(), message->buffer.addMessage(message.setServerId(UUID.randomUUID()))).collect(Collectors.toMap(m->m.getName(), m->m));
+        List<Message> result = buffer.getMessagesAfter(first).toStream().collect(Collectors.toList());
+        assertEquals(40, result.size());
+        
+        // Re-open the same directory in a new pool, as would happen after a restart
+        BufferPool reopenedPool = new BufferPool(messageSize * 5, directory);
+        assertThat(reopenedPool.getRestoredNames().collect(Collectors.toList()), contains("test"));
+        MessageBuffer reopened = reopenedPool.createBuffer(clock, 1024, "test");
+        assertThat(reopenedPool.getSize(), equalTo(pool.getSize()));
+        assertThat(reopened.firstTimestamp(), equalTo(buffer.firstTimestamp()));
+        assertThat(reopened.lastTimestamp(), equalTo(buffer.lastTimestamp()));
+        List<Message> recovered = reopened.getMessagesAfter(first).toStream().collect(Collectors.toList());
+        assertEquals(40, recovered.size());
+        for (Message received : recovered) {
+            Message sent = messages.get(received.getName());
+            assertThat(sent.getHeaders(), equalTo(received.getHeaders()));
+            assertThat(asString(received.getData()), equalTo(asString(sent.getData())));
+            assertThat(reopened.getMessages(received.getId()).toStream().count(), equalTo(1L));
+        }
+        
+        // New messages are appended to the recovered buffer
+        Message added = reopened.addMessage(messages.values().iterator().next().setName(randomFeedPath().addId("added")));
+        assertThat(reopened.lastTimestamp(), equalTo(Optional.of(added.getTimestamp())));
+        
+        // Segment files are removed when buckets are deallocated
+        reopenedPool.deallocateBuckets();
+        assertThat(reopenedPool.getSize(), lessThanOrEqualTo(messageSize * 20L));
+        long segmentSize;
+        try (Stream<Path> files = Files.walk(directory)) {
+            segmentSize = files.filter(Files::isRegularFile).mapToLong(file->file.toFile().length()).sum();
+        }
+        assertThat(segmentSize, lessThanOrEqualTo(messageSize * 20L + 1024));
+    }
+    
+    @Test
+    public void testMappedPoolRecoveryWithClockBehind() throws IOException {
+        Path directory = Files.createTempDirectory("TestMessageBuffer");
+        // Messages are written by a clock pushed well ahead of the system time by a remote node
+        HybridClock clock = new HybridClock();
+        clock.merge(Instant.now().plusSeconds(3600));
+        BufferPool pool = new BufferPool(100000000, directory);
+        MessageBuffer buffer = pool.createBuffer(clock, 1024, "test");
+        generateMessages(10, 0, randomFeedPath(), message->buffer.addMessage(message.setServerId(UUID.randomUUID()))).count();
+        Instant last = buffer.lastTimestamp().get();
+        
+        // After a restart the fresh clock is behind the recovered messages
+        BufferPool reopenedPool = new BufferPool(100000000, directory);
+        MessageBuffer reopened = reopenedPool.createBuffer(new MessageClock(), 1024, "test");
+        assertThat(reopened.now(), greaterThan(last));
+        Message added = reopened.addMessage(generateMessage(randomFeedPath()).setServerId(UUID.randomUUID()));
+        assertThat(added.getTimestamp(), greaterThan(last));
+        assertThat(reopened.checkpoint(), greaterThan(added.getTimestamp()));
+        assertThat(reopened.getMessagesAfter(last).toStream().map(Message::getName).collect(Collectors.toList()), contains(added.getName()));
+    }
+    
+    @Test
+    public void testSnapshotRestore() throws IOException, InterruptedException {
+        Path snapshot = Files.createTempDirectory("TestMessageBuffer").resolve("pool.snapshot");
+        MessageClock clock = new MessageClock();
+        BufferPool pool = new BufferPool(100000000);
+        pool.setLargeMessageStorage(1000);
+        pool.setSnapshot(snapshot);
+        MessageBuffer buffer = pool.createBuffer(clock, 1024, "test");
+        Instant first = buffer.checkpoint();
+        byte[] large = new byte[10000];
+        for (int i = 0; i < large.length; i++) large[i] = (byte)i;
+        Map<FeedPath,Message> messages = generateMessages(40, 0, randomFeedPath(), message->buffer.addMessage(message.setServerId(UUID.randomUUID()))).collect(Collectors.toMap(m->m.getName(), m->m));
+        Message largeMessage = buffer.addMessage(generateMessage(randomFeedPath()).setServerId(UUID.randomUUID()).setData(()->new ByteArrayInputStream(large), large.length));
+        messages.put(largeMessage.getName(), largeMessage);
+        pool.writeSnapshot();
+        assertThat(Files.exists(snapshot), equalTo(true));
+        
+        // Load the snapshot in a new pool, as would happen after a restart
+        BufferPool restoredPool = new BufferPool(100000000);
+        restoredPool.setSnapshot(snapshot);
+        assertThat(Files.exists(snapshot), equalTo(false));
+        assertThat(restoredPool.getSnapshotNames().collect(Collectors.toList()), contains("test"));
+        MessageBuffer restored = restoredPool.createBuffer(clock, 1024, "test");
+        assertThat(restoredPool.getSnapshotNames().count(), equalTo(0L));
+        assertThat(restored.firstTimestamp(), equalTo(buffer.firstTimestamp()));
+        assertThat(restored.lastTimestamp(), equalTo(buffer.lastTimestamp()));
+        List<Message> recovered = restored.getMessagesAfter(first).toStream().collect(Collectors.toList());
+        assertEquals(41, recovered.size());
+        for (Message received : recovered) {
+            Message sent = messages.get(received.getName());
+            assertEquals(sent, received);
+            assertThat(received.getHeaders(), equalTo(sent.getHeaders()));
+            assertThat(asString(received.getData()), equalTo(asString(sent.getData())));
+            assertThat(restored.getMessages(received.getId()).toStream().count(), equalTo(1L));
+        }
+        
+        // New messages are appended after the restored buckets
+        Message added = restored.addMessage(generateMessage(randomFeedPath()).setServerId(UUID.randomUUID()));
+        assertThat(restored.lastTimestamp(), equalTo(Optional.of(added.getTimestamp())));
+        assertThat(restored.getMessagesAfter(first).toStream().count(), equalTo(42L));
+        
+        // Restored buckets can be evicted like any other
+        restoredPool.setEvictionPolicy((candidates, p) -> candidates.findFirst());
+        restoredPool.deallocateBuckets();
+        assertThat(restored.getMessagesAfter(first).toStream().count(), equalTo(1L));
+        assertThat(restoredPool.getSize(), equalTo(restored.getSize()));
+    }
+    
+    @Test
+    public void testSnapshotRestoreWithClockBehind() throws IOException {
+        Path snapshot = Files.createTempDirectory("TestMessageBuffer").resolve("pool.snapshot");
+        HybridClock clock = new HybridClock();
+        clock.merge(Instant.now().plusSeconds(3600));
+        BufferPool pool = new BufferPool(100000000);
+        pool.setSnapshot(snapshot);
+        MessageBuffer buffer = pool.createBuffer(clock, 1024, "test");
+        generateMessages(10, 0, randomFeedPath(), message->buffer.addMessage(message.setServerId(UUID.randomUUID()))).count();
+        Instant last = buffer.lastTimestamp().get();
+        pool.writeSnapshot();
+        
+        BufferPool restoredPool = new BufferPool(100000000);
+        restoredPool.setSnapshot(snapshot);
+        MessageBuffer restored = restoredPool.createBuffer(new MessageClock(), 1024, "test");
+        Message added = restored.addMessage(generateMessage(randomFeedPath()).setServerId(UUID.randomUUID()));
+        assertThat(added.getTimestamp(), greaterThan(last));
+        assertThat(restored.getMessagesAfter(last).toStream().map(Message::getName).collect(Collectors.toList()), contains(added.getName()));
+    }
+    
+    @Test
+    public void testUnreadableSnapshotKept() throws IOException {
+        Path directory = Files.createTempDirectory("TestMessageBuffer");
+        Path snapshot = directory.resolve("pool.snapshot");
+        BufferPool pool = new BufferPool(100000000);
+        pool.setSnapshot(snapshot);
+        pool.createBuffer(new MessageClock(), 1024, "test").addMessage(generateMessage(randomFeedPath()).setServerId(UUID.randomUUID()));
+        pool.writeSnapshot();
+        // Truncate the snapshot part way through its records
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 10);
+        }
+        BufferPool restoredPool = new BufferPool(100000000);
+        restoredPool.setSnapshot(snapshot);
+        assertThat(restoredPool.getSnapshotNames().count(), equalTo(0L));
+        assertThat(Files.exists(snapshot), equalTo(false));
+        try (Stream<Path> files = Files.list(directory)) {
+            assertThat(files.filter(file->file.getFileName().toString().endsWith(".unreadable")).count(), equalTo(1L));
+        }
+    }
+    
+    @Test
+    public void testJournalReplay() throws IOException {
+        Path directory = Files.createTempDirectory("TestMessageBuffer");
+        MessageClock clock = new MessageClock();
+        BufferPool pool = new BufferPool(100000000);
+        pool.setLargeMessageStorage(1000);
+        pool.setJournal(directory, Journal.Sync.GROUP, 10);
+        MessageBuffer buffer = pool.createBuffer(clock, 1024, "test");
+        Instant first = buffer.checkpoint();
+        byte[] large = new byte[10000];
+        for (int i = 0; i < large.length; i++) large[i] = (byte)i;
+        Map<FeedPath,Message> messages = generateMessages(40, 0, randomFeedPath(), message->buffer.addMessage(message.setServerId(UUID.randomUUID()))).collect(Collectors.toMap(m->m.getName(), m->m));
+        Message largeMessage = buffer.addMessage(generateMessage(randomFeedPath()).setServerId(UUID.randomUUID()).setData(()->new ByteArrayInputStream(large), large.length));
+        messages.put(largeMessage.getName(), largeMessage);
+        
+        // Replay the journal in a new pool, as would happen after a crash; the old pool is never closed
+        BufferPool replayedPool = new BufferPool(100000000);
+        replayedPool.setJournal(directory, Journal.Sync.MESSAGE, 0);
+        assertThat(replayedPool.getRestoredNames().collect(Collectors.toList()), contains("test"));
+        MessageBuffer replayed = replayedPool.createBuffer(clock, 1024, "test");
+        assertThat(replayed.firstTimestamp(), equalTo(buffer.firstTimestamp()));
+        assertThat(replayed.lastTimestamp(), equalTo(buffer.lastTimestamp()));
+        List<Message> recovered = replayed.getMessagesAfter(first).toStream().collect(Collectors.toList());
+        assertEquals(41, recovered.size());
+        for (Message received : recovered) {
+            Message sent = messages.get(received.getName());
+            assertEquals(sent, received);
+            assertThat(received.getTimestamp(), equalTo(sent.getTimestamp()));
+            assertThat(received.getHeaders(), equalTo(sent.getHeaders()));
+            assertThat(asString(received.getData()), equalTo(asString(sent.getData())));
+        }
+        
+        // The old segment is kept, rather than journaling replayed messages again
+        Message added = replayed.addMessage(generateMessage(randomFeedPath()).setServerId(UUID.randomUUID()));
+        replayedPool.closeJournal();
+        try (Stream<Path> segments = Files.list(directory)) {
+            assertThat(segments.count(), equalTo(2L));
+        }
+        BufferPool reopenedPool = new BufferPool(100000000);
+        reopenedPool.setJournal(directory, Journal.Sync.OS, 0);
+        MessageBuffer reopened = reopenedPool.createBuffer(clock, 1024, "test");
+        assertThat(reopened.getMessagesAfter(first).toStream().count(), equalTo(42L));
+        assertThat(reopened.lastTimestamp(), equalTo(Optional.of(added.getTimestamp())));
+        reopenedPool.closeJournal();
+    }
+    
+    @Test
+    public void testJournalReplayWithClockBehind() throws IOException {
+        Path directory = Files.createTempDirectory("TestMessageBuffer");
+        HybridClock clock = new HybridClock();
+        clock.merge(Instant.now().plusSeconds(3600));
+        BufferPool pool = new BufferPool(100000000);
+        pool.setJournal(directory, Journal.Sync.OS, 0);
+        MessageBuffer buffer = pool.createBuffer(clock, 1024, "test");
+        generateMessages(10, 0, randomFeedPath(), message->buffer.addMessage(message.setServerId(UUID.randomUUID()))).count();
+        Instant last = buffer.lastTimestamp().get();
+        
+        BufferPool replayedPool = new BufferPool(100000000);
+        replayedPool.setJournal(directory, Journal.Sync.OS, 0);
+        MessageBuffer replayed = replayedPool.createBuffer(new MessageClock(), 1024, "test");
+        Message added = replayed.addMessage(generateMessage(randomFeedPath()).setServerId(UUID.randomUUID()));
+        assertThat(added.getTimestamp(), greaterThan(last));
+        assertThat(replayed.getMessagesAfter(last).toStream().map(Message::getName).collect(Collectors.toList()), contains(added.getName()));
+        replayedPool.closeJournal();
+    }
+    
+    @Test
+    public void testConcurrentJournaledAppend() throws IOException, InterruptedException, ExecutionException {
+        Path directory = Files.createTempDirectory("TestMessageBuffer");
+        MessageClock clock = new MessageClock();
+        BufferPool pool = new BufferPool(100000000);
+        pool.setJournal(directory, Journal.Sync.MESSAGE, 0);
+        MessageBuffer buffer = pool.createBuffer(clock, 4096, "test");
+        Instant start = buffer.checkpoint();
+        List<Message> sent = generateMessages(8, 50, 0, getFeeds(), message->buffer.addMessage(message.setServerId(UUID.randomUUID())))
+            .get()
+            .collect(Collectors.toList());
+        
+        // Every append was on disk before it returned, so all are replayed after a crash
+        BufferPool replayedPool = new BufferPool(100000000);
+        replayedPool.setJournal(directory, Journal.Sync.OS, 0);
+        MessageBuffer replayed = replayedPool.createBuffer(clock, 4096, "test");
+        assertMatch(sent.stream(), replayed.getMessagesAfter(start).toStream());
+        replayedPool.closeJournal();
+    }
+    
+    @Test
+    public void testSnapshotWithJournal() throws IOException {
+        Path directory = Files.createTempDirectory("TestMessageBuffer");
+        Path snapshot = directory.resolve("pool.snapshot");
+        Path journal = directory.resolve("journal");
+        MessageClock clock = new MessageClock();
+        BufferPool pool = new BufferPool(100000000);
+        pool.setSnapshot(snapshot);
+        pool.setJournal(journal, Journal.Sync.OS, 0);
+        MessageBuffer buffer = pool.createBuffer(clock, 1024, "test");
+        Instant first = buffer.checkpoint();
+        generateMessages(20, 0, randomFeedPath(), message->buffer.addMessage(message.setServerId(UUID.randomUUID()))).count();
+        pool.writeSnapshot();
+        // Messages added after the snapshot are only in the journal; the old pool is never closed
+        generateMessages(3, 0, randomFeedPath(), message->buffer.addMessage(message.setServerId(UUID.randomUUID()))).count();
+        
+        // Restart from the snapshot and the journal, then crash again
+        BufferPool restartedPool = new BufferPool(100000000);
+        restartedPool.setSnapshot(snapshot);
+        restartedPool.setJournal(journal, Journal.Sync.OS, 0);
+        MessageBuffer restarted = restartedPool.createBuffer(clock, 1024, "test");
+        assertThat(restarted.getMessagesAfter(first).toStream().count(), equalTo(23L));
+        generateMessages(2, 0, randomFeedPath(), message->restarted.addMessage(message.setServerId(UUID.randomUUID()))).count();
+        assertThat(Files.exists(snapshot), equalTo(false));
+        
+        // Everything retained when the restarted pool crashed is still in the journal
+        BufferPool recoveredPool = new BufferPool(100000000);
+        recoveredPool.setSnapshot(snapshot);
+        recoveredPool.setJournal(journal, Journal.Sync.OS, 0);
+        MessageBuffer recovered = recoveredPool.createBuffer(clock, 1024, "test");
+        assertThat(recovered.getMessagesAfter(first).toStream().count(), equalTo(25L));
+        assertThat(recovered.lastTimestamp(), equalTo(restarted.lastTimestamp()));
+        
+        // Once nothing in the old segments is retained, they are trimmed
+        generateMessages(20, 0, randomFeedPath(), message->recovered.addMessage(message.setServerId(UUID.randomUUID()))).count();
+        recoveredPool.setEvictionPolicy((candidates, p) -> candidates.findFirst());
+        recoveredPool.deallocateBuckets();
+        recoveredPool.closeJournal();
+        try (Stream<Path> segments = Files.list(journal)) {
+            assertThat(segments.count(), equalTo(1L));
+        }
+    }
+    
     @Test
     public void testMulthreadedAdd() throws IOException, InterruptedException, ExecutionException {
         BufferPool pool = new BufferPool(100000);
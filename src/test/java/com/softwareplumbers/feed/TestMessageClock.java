@@ -5,14 +5,23 @@
  */
 package com.softwareplumbers.feed;
 
+import com.softwareplumbers.feed.impl.buffer.HybridClock;
 import com.softwareplumbers.feed.impl.buffer.MessageClock;
+import java.time.Clock;
 import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.lessThan;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
+import org.junit.Ignore;
 import org.junit.Test;
 
 /**
@@ -21,6 +30,75 @@ import org.junit.Test;
  */
 public class TestMessageClock {
     
+    private static final int THREADS = 8;
+    private static final int CALLS = 200000;
+    
+    /** The original message clock, which locks on every call. */
+    private static class SynchronizedClock extends Clock {
+        long nanos = 0;
+        long lastSystemTime;
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneId.systemDefault();
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Instant instant() {
+            long nextSystemTime = System.currentTimeMillis();
+            synchronized (this) {
+                if (nextSystemTime <= lastSystemTime) {
+                    nanos++;
+                } else {
+                    lastSystemTime = nextSystemTime;
+                    nanos = 0;
+                }
+                return Instant.ofEpochMilli(lastSystemTime).plusNanos(nanos);
+            }
+        }
+    }
+    
+    /** Call a clock from several threads at once.
+     * 
+     * @return elapsed time in nanoseconds
+     */
+    private static long contend(Clock clock, int calls, Set<Instant> results) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(THREADS);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            Thread thread = new Thread(()->{
+                try {
+                    start.await();
+                    Instant previous = Instant.MIN;
+                    for (int i = 0; i < calls; i++) {
+                        Instant next = clock.instant();
+                        if (!next.isAfter(previous)) throw new AssertionError("clock went backwards");
+                        if (results != null) results.add(next);
+                        previous = next;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        for (Thread thread : threads) thread.join();
+        return elapsed;
+    }
+    
     @Test
     public void testAllValuesDistinct() {
         Instant[] results = new Instant[1000];
@@ -46,4 +124,42 @@ public class TestMessageClock {
         }
     }
     
+    @Test
+    public void testHybridClockMerge() {
+        HybridClock clock = new HybridClock();
+        Instant remote = clock.instant().plusSeconds(3600);
+        clock.merge(remote);
+        Instant next = clock.instant();
+        assertThat(next, greaterThan(remote));
+        clock.merge(remote.minusSeconds(60));
+        assertThat(clock.instant(), greaterThan(next));
+    }
+    
+    @Test
+    public void testConcurrentValuesDistinct() throws InterruptedException {
+        Set<Instant> results = ConcurrentHashMap.newKeySet();
+        contend(new MessageClock(), CALLS / 10, results);
+        assertEquals(THREADS * CALLS / 10, results.size());
+    }
+    
+    /** Compare the lock-free clock with the original locking clock under contention.
+     * 
+     * This is a benchmark rather than a test; it asserts on timings, so is not run as part 
+     * of the suite. Remove the Ignore annotation to run it by hand.
+     */
+    @Ignore("benchmark")
+    @Test
+    public void testContention() throws InterruptedException {
+        // warm up
+        contend(new SynchronizedClock(), CALLS, null);
+        contend(new MessageClock(), CALLS, null);
+        long locking = Long.MAX_VALUE;
+        long lockFree = Long.MAX_VALUE;
+        for (int run = 0; run < 3; run++) {
+            locking = Math.min(locking, contend(new SynchronizedClock(), CALLS, null));
+            lockFree = Math.min(lockFree, contend(new MessageClock(), CALLS, null));
+        }
+        System.out.println("synchronized clock: " + locking / (THREADS * CALLS) + "ns per call, lock-free clock: " + lockFree / (THREADS * CALLS) + "ns per call");
+        assertThat(lockFree, lessThan(locking * 2));
+    }
 }
@@ -0,0 +1,43 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.feed.impl;
+
+import com.softwareplumbers.feed.Message;
+import com.softwareplumbers.feed.MessageIterator;
+import static com.softwareplumbers.feed.test.TestUtils.*;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author jonathan
+ */
+public class TestSharedResults {
+
+    @Test
+    public void testReadersReplaySource() {
+        List<Message> messages = Stream.generate(()->generateMessage(randomFeedPath())).limit(5).collect(Collectors.toList());
+        AtomicInteger pulled = new AtomicInteger(0);
+        AtomicInteger closed = new AtomicInteger(0);
+        MessageIterator source = MessageIterator.of(messages.stream().peek(message->pulled.incrementAndGet()).iterator(), closed::incrementAndGet);
+        List<MessageIterator> readers = SharedResults.share(source, 3);
+        assertThat(readers.get(0).toStream().collect(Collectors.toList()), equalTo(messages));
+        readers.get(0).close();
+        assertThat(closed.get(), equalTo(0));
+        assertThat(readers.get(1).toStream().collect(Collectors.toList()), equalTo(messages));
+        readers.get(1).close();
+        // the last reader is closed without being read
+        readers.get(2).close();
+        readers.get(2).close();
+        assertThat(pulled.get(), equalTo(5));
+        assertThat(closed.get(), equalTo(1));
+    }
+}
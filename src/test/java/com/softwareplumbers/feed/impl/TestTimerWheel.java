@@ -0,0 +1,56 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.feed.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author jonathan
+ */
+public class TestTimerWheel {
+
+    @Test
+    public void testTimeoutsExpireInOrder() throws InterruptedException {
+        try (TimerWheel wheel = new TimerWheel("test-timeouts", 5, 8)) {
+            List<Integer> expired = new ArrayList<>();
+            CountDownLatch done = new CountDownLatch(3);
+            long start = System.nanoTime();
+            // 200ms is several turns of an 8 slot wheel
+            wheel.schedule(200, ()->{ synchronized(expired) { expired.add(200); } done.countDown(); });
+            wheel.schedule(20, ()->{ synchronized(expired) { expired.add(20); } done.countDown(); });
+            wheel.schedule(0, ()->{ synchronized(expired) { expired.add(0); } done.countDown(); });
+            assertThat(done.await(5, TimeUnit.SECONDS), equalTo(true));
+            assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), greaterThanOrEqualTo(200L));
+            assertThat(expired, contains(0, 20, 200));
+            assertThat(wheel.getPending(), equalTo(0));
+        }
+    }
+
+    @Test
+    public void testCancelTimeout() throws InterruptedException {
+        try (TimerWheel wheel = new TimerWheel("test-timeouts", 5, 8)) {
+            AtomicInteger runs = new AtomicInteger(0);
+            CountDownLatch done = new CountDownLatch(1);
+            TimerWheel.Timeout cancelled = wheel.schedule(20, runs::incrementAndGet);
+            TimerWheel.Timeout expired = wheel.schedule(40, done::countDown);
+            assertThat(wheel.getPending(), equalTo(2));
+            assertThat(cancelled.cancel(), equalTo(true));
+            assertThat(cancelled.cancel(), equalTo(false));
+            assertThat(done.await(5, TimeUnit.SECONDS), equalTo(true));
+            assertThat(expired.cancel(), equalTo(false));
+            assertThat(runs.get(), equalTo(0));
+            assertThat(wheel.getPending(), equalTo(0));
+        }
+    }
+}
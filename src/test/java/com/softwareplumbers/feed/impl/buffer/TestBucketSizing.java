@@ -0,0 +1,81 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.feed.impl.buffer;
+
+import java.time.Duration;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import org.junit.Test;
+
+/**
+ *
+ * @author jonathan
+ */
+public class TestBucketSizing {
+
+    private static final long SECOND = 1000000000L;
+
+    private static final BucketSizing SIZING = new BucketSizing(Duration.ofSeconds(10), 8, 1024, 1024 * 1024);
+
+    /** Simulate a buffer which receives messages at a steady rate.
+     *
+     * @return The histogram after several buckets have been filled
+     */
+    private static MessageHistogram simulate(int messageSize, long interval) {
+        MessageHistogram histogram = new MessageHistogram();
+        int bucketSize = 1024;
+        int used = 0;
+        long time = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (used + messageSize > bucketSize) {
+                histogram.rollover(time);
+                bucketSize = SIZING.calcSize(histogram, messageSize);
+                used = 0;
+            }
+            histogram.record(messageSize, time);
+            used += messageSize;
+            time += interval;
+        }
+        return histogram;
+    }
+
+    @Test
+    public void testPercentiles() {
+        MessageHistogram histogram = new MessageHistogram();
+        assertThat(histogram.getSizePercentile(0.9), equalTo(0));
+        for (int i = 0; i < 90; i++) histogram.record(100, 0);
+        for (int i = 0; i < 10; i++) histogram.record(5000, 0);
+        assertThat(histogram.getSizePercentile(0.5), equalTo(128));
+        assertThat(histogram.getSizePercentile(0.9), equalTo(128));
+        assertThat(histogram.getSizePercentile(1.0), equalTo(8192));
+        assertThat(histogram.getByteRate(), equalTo(Double.NaN));
+    }
+
+    @Test
+    public void testRate() {
+        MessageHistogram histogram = new MessageHistogram();
+        for (int i = 0; i < 10; i++) histogram.record(100, i * SECOND / 10);
+        histogram.rollover(SECOND);
+        assertThat(histogram.getByteRate(), equalTo(1000.0));
+    }
+
+    @Test
+    public void testQuietAndBusyBuffers() {
+        // 100 byte messages every ten seconds: one message per target span
+        MessageHistogram quiet = simulate(100, 10 * SECOND);
+        assertThat(SIZING.calcSize(quiet, 100), equalTo(1024));
+        // 100 byte messages every millisecond: 100k per second, so a megabyte per target span
+        MessageHistogram busy = simulate(100, SECOND / 1000);
+        assertThat(SIZING.calcSize(busy, 100), equalTo(1024 * 1024));
+        // 300 byte messages every second: 3000 bytes per span, but room for 8 messages of 512 bytes
+        MessageHistogram steady = simulate(300, SECOND);
+        assertThat(SIZING.calcSize(steady, 300), equalTo(4096));
+        // never smaller than required
+        assertThat(SIZING.calcSize(quiet, 5000), equalTo(5000));
+        assertThat(SIZING.calcSize(busy, 4 * 1024 * 1024), greaterThan(1024 * 1024));
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.feed.impl.buffer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ *
+ * @author jonathan
+ */
+public class TestBufferPool {
+
+    private static final int BUCKET_SIZE = 64;
+    private static final int OPERATIONS = 1000;
+
+    private static List<Bucket> fill(BufferPool pool, MessageBuffer buffer, int count) {
+        List<Bucket> buckets = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Bucket bucket = new Bucket(BUCKET_SIZE);
+            pool.registerBucket(bucket, buffer);
+            buckets.add(bucket);
+        }
+        return buckets;
+    }
+
+    /** Time reallocation of the oldest buckets and release of the newest buckets in a pool.
+     *
+     * Both operations required a scan of the pool's registry before it became an
+     * intrusive list.
+     *
+     * @return best time in nanoseconds over several runs
+     */
+    private static long timeBookkeeping(int bucketCount) {
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 3; run++) {
+            BufferPool pool = new BufferPool(Long.MAX_VALUE);
+            pool.setMaxFreeSize(0);
+            MessageBuffer buffer = pool.createBuffer(new MessageClock(), BUCKET_SIZE);
+            List<Bucket> buckets = fill(pool, buffer, bucketCount);
+            long start = System.nanoTime();
+            for (int i = 0; i < OPERATIONS; i++) {
+                pool.reallocateBucket(buckets.get(i));
+                pool.releaseBuckets(Collections.singletonList(buckets.get(bucketCount - i - 1)));
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    @Test
+    public void testRegistryOrder() {
+        BufferPool pool = new BufferPool(Long.MAX_VALUE);
+        MessageBuffer buffer = pool.createBuffer(new MessageClock(), BUCKET_SIZE);
+        List<Bucket> buckets = fill(pool, buffer, 5);
+        pool.reallocateBucket(buckets.get(0));
+        pool.releaseBuckets(Collections.singletonList(buckets.get(2)));
+        pool.releaseBuckets(Collections.singletonList(buckets.get(2)));
+        List<Bucket> order = pool.getEvictionCandidates()
+            .map(candidate->((BucketRegistry.Registration)candidate).bucket)
+            .collect(Collectors.toList());
+        assertThat(order, equalTo(Arrays.asList(buckets.get(1), buckets.get(3), buckets.get(4), buckets.get(0))));
+        assertThat(pool.getSize(), equalTo(buffer.getSize()));
+    }
+
+    @Test
+    public void testIterationSurvivesUpdates() {
+        BucketRegistry registry = new BucketRegistry();
+        List<Bucket> buckets = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Bucket bucket = new Bucket(BUCKET_SIZE);
+            registry.add(bucket, null);
+            buckets.add(bucket);
+        }
+        Iterator<BucketRegistry.Registration> scan = registry.stream().iterator();
+        assertThat(scan.next().bucket, equalTo(buckets.get(0)));
+        // the scan is now positioned on the second bucket
+        registry.moveToEnd(buckets.get(1));
+        registry.remove(buckets.get(2));
+        List<Bucket> rest = new ArrayList<>();
+        scan.forEachRemaining(registration->rest.add(registration.bucket));
+        assertThat(rest, equalTo(Arrays.asList(buckets.get(3), buckets.get(4), buckets.get(1))));
+    }
+
+    @Test
+    public void testEvictionScansPoolOnce() {
+        BufferPool pool = new BufferPool(Long.MAX_VALUE);
+        MessageBuffer dropped = pool.createBuffer(new MessageClock(), BUCKET_SIZE);
+        MessageBuffer kept = pool.createBuffer(new MessageClock(), BUCKET_SIZE);
+        for (int i = 0; i < 100; i++) {
+            fill(pool, dropped, 1);
+            fill(pool, kept, 1);
+        }
+        AtomicInteger visited = new AtomicInteger(0);
+        pool.setEvictionPolicy((candidates, p) -> candidates
+            .peek(candidate->visited.incrementAndGet())
+            .filter(candidate->candidate.getBuffer() == dropped)
+            .findFirst());
+        pool.deallocateBuckets();
+        assertThat(pool.getEvictionCandidates().filter(candidate->candidate.getBuffer() == dropped).count(), equalTo(0L));
+        assertThat(pool.getEvictionCandidates().count(), equalTo(100L));
+        // re-scanning the pool for each victim would visit over 5000 candidates
+        assertThat(visited.get(), equalTo(200));
+    }
+
+    /** Benchmark rather than a test, since it asserts on elapsed time.
+     *
+     * Remove the Ignore annotation to run it by hand.
+     */
+    @Ignore("benchmark")
+    @Test
+    public void testEvictionCostIsFlat() {
+        // warm up
+        timeBookkeeping(OPERATIONS * 2);
+        long small = timeBookkeeping(OPERATIONS * 2);
+        long large = timeBookkeeping(OPERATIONS * 50);
+        // with a linear scan, the large pool would take around 25 times as long
+        assertThat(large, lessThan(small * 5));
+    }
+}
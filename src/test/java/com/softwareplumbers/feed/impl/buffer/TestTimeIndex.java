@@ -0,0 +1,63 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.softwareplumbers.feed.impl.buffer;
+
+import java.time.Instant;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import org.junit.Test;
+
+/**
+ *
+ * @author jonathan
+ */
+public class TestTimeIndex {
+
+    @Test
+    public void testNanosConversion() {
+        Instant now = Instant.now();
+        assertThat(TimeIndex.toInstant(TimeIndex.toNanos(now)), equalTo(now));
+        Instant before = Instant.ofEpochSecond(-10, 5);
+        assertThat(TimeIndex.toInstant(TimeIndex.toNanos(before)), equalTo(before));
+        assertThat(TimeIndex.toNanos(Instant.MAX), equalTo(Long.MAX_VALUE));
+        assertThat(TimeIndex.toNanos(Instant.MIN), equalTo(Long.MIN_VALUE));
+    }
+
+    @Test
+    public void testSearch() {
+        TimeIndex index = new TimeIndex();
+        // timestamps 0,10,10,10,20,30,...
+        int offset = 0;
+        index.append(0, offset++, (byte)0);
+        for (int i = 0; i < 3; i++) index.append(10, offset++, (byte)0);
+        for (int i = 2; i < 100; i++) index.append(i * 10, offset++, (byte)(i % 4));
+        assertThat(index.size(), equalTo(102));
+        assertThat(index.getOffset(101), equalTo(101));
+        assertThat(index.getTimestamp(101), equalTo(990L));
+        assertThat(index.getFlags(101), equalTo((byte)3));
+        assertThat(index.search(10, true), equalTo(1));
+        assertThat(index.search(10, false), equalTo(4));
+        assertThat(index.search(5, true), equalTo(1));
+        assertThat(index.search(5, false), equalTo(1));
+        assertThat(index.search(Long.MIN_VALUE, true), equalTo(0));
+        assertThat(index.search(990, true), equalTo(101));
+        assertThat(index.search(990, false), equalTo(102));
+        assertThat(index.search(Long.MAX_VALUE, true), equalTo(102));
+    }
+
+    @Test
+    public void testClear() {
+        TimeIndex index = new TimeIndex();
+        for (int i = 0; i < 20; i++) index.append(i, i, (byte)0);
+        index.clear();
+        assertThat(index.size(), equalTo(0));
+        assertThat(index.search(5, true), equalTo(0));
+        index.append(100, 7, RecordFilter.ACK);
+        assertThat(index.size(), equalTo(1));
+        assertThat(index.getOffset(0), equalTo(7));
+        assertThat(index.getFlags(0), equalTo(RecordFilter.ACK));
+    }
+}
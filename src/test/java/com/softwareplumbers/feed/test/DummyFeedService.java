@@ -18,7 +18,11 @@ import java.util.concurrent.Executors;
 public class DummyFeedService extends BufferingFeedService {
     
     public DummyFeedService(UUID id, long poolSize, int bucketSize) {
-        super(id, Executors.newScheduledThreadPool(5), new MessageClock(), new BufferPool(poolSize), bucketSize);
+        this(id, new MessageClock(), poolSize, bucketSize);
+    }
+    
+    public DummyFeedService(UUID id, MessageClock clock, long poolSize, int bucketSize) {
+        super(id, Executors.newScheduledThreadPool(5), clock, new BufferPool(poolSize), bucketSize);
     }
 
     @Override